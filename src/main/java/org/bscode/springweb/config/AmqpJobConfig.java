@@ -0,0 +1,27 @@
+package org.bscode.springweb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bscode.springweb.queue.JobTransport;
+import org.bscode.springweb.queue.RabbitJobTransport;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConditionalOnProperty(prefix = "spring-web.amqp", name = "enabled", havingValue = "true")
+public class AmqpJobConfig {
+    @Bean
+    public Queue callbackJobQueue(SpringWebProperties props) {
+        return QueueBuilder.durable(props.getAmqp().getQueue()).build();
+    }
+
+    @Bean(destroyMethod = "stop")
+    public JobTransport jobTransport(SpringWebProperties props, RabbitTemplate template,
+                                     ConnectionFactory connectionFactory, ObjectMapper mapper) {
+        return new RabbitJobTransport(props.getAmqp(), template, connectionFactory, mapper);
+    }
+}
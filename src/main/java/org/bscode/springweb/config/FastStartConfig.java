@@ -0,0 +1,23 @@
+package org.bscode.springweb.config;
+
+import org.bscode.springweb.queue.JobTransport;
+import org.bscode.springweb.service.HttpClientFactory;
+import org.bscode.springweb.service.JobStore;
+import org.bscode.springweb.service.RequestService;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+// With spring.main.lazy-initialization=true, as in the faststart profile,
+// beans are created on first use. The pipeline is kept eager: RequestService
+// starts the transport consumers and replays the redelivery journal when it
+// is built, and a lazily built one would put its whole construction on the
+// first request.
+@Configuration
+public class FastStartConfig {
+    @Bean
+    public static LazyInitializationExcludeFilter eagerPipeline() {
+        return LazyInitializationExcludeFilter.forBeanTypes(
+                RequestService.class, JobStore.class, HttpClientFactory.class, JobTransport.class);
+    }
+}
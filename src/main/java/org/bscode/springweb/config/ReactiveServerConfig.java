@@ -0,0 +1,27 @@
+package org.bscode.springweb.config;
+
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.client.reactive.ReactorResourceFactory;
+
+// Runs the reactive profile on Reactor Netty. Tomcat is still on the
+// classpath for the servlet mode and Boot would otherwise prefer it as the
+// reactive server too. The resource factory uses Reactor Netty's global
+// event loops, which are the same loops HttpClientFactory's clients run on.
+@Configuration
+@Profile("reactive")
+public class ReactiveServerConfig {
+    @Bean
+    public ReactorResourceFactory reactorResourceFactory() {
+        return new ReactorResourceFactory();
+    }
+
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory(ReactorResourceFactory resourceFactory) {
+        NettyReactiveWebServerFactory factory = new NettyReactiveWebServerFactory();
+        factory.setResourceFactory(resourceFactory);
+        return factory;
+    }
+}
@@ -3,12 +3,386 @@ package org.bscode.springweb.config;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Data
 @Configuration
 @ConfigurationProperties(prefix = "spring-web")
 public class SpringWebProperties {
+    // Comma-separated base URLs; calls are balanced over them client-side
     private String paramBaseUrl;
     private String archiveBaseUrl;
+    private final Pipeline pipeline = new Pipeline();
+    private final Amqp amqp = new Amqp();
+    private final Pool pool = new Pool();
+    private final ArchiveBatch archiveBatch = new ArchiveBatch();
+    private final Http2 http2 = new Http2();
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final Resilience resilience = new Resilience();
+    private final Jobs jobs = new Jobs();
+    private final Bulk bulk = new Bulk();
+    private final Hedging hedging = new Hedging();
+    private final Balancing balancing = new Balancing();
+    private final Wire wire = new Wire();
+    private final Redelivery redelivery = new Redelivery();
+    private final Tenants tenants = new Tenants();
+    private final PassThrough passThrough = new PassThrough();
+    private final Callbacks callbacks = new Callbacks();
+    private final Warmup warmup = new Warmup();
+    private final ArchiveDedupe archiveDedupe = new ArchiveDedupe();
+    private final Diagnostics diagnostics = new Diagnostics();
+    private final Simulation simulation = new Simulation();
+    private final Client paramClient = new Client(Duration.ofMillis(500), Duration.ofSeconds(5000));
+    private final Client archiveClient = new Client(Duration.ofMillis(250), Duration.ofSeconds(500));
+    private final Client callbackClient = new Client(Duration.ofMillis(250), Duration.ofSeconds(500));
+
+    @Data
+    public static class Pipeline {
+        // Detached callback pipelines allowed to run at once
+        private int maxInFlight = 256;
+        // Pipelines waiting for a free slot before /request/ answers busy
+        private int queueCapacity = 1024;
+        // Thread caps for the per-stage schedulers
+        private int workerThreads = 4;
+        private int archiveThreads = 2;
+        private int callbackThreads = 4;
+        // Per-stage bulkheads: calls a stage makes at once, and calls that may wait for a
+        // turn before the stage refuses more. Concurrency plus queue must be at least
+        // maxInFlight, checked at startup, so a running pipeline always gets a turn
+        private int workerConcurrency = 128;
+        private int workerQueue = 128;
+        private int archiveConcurrency = 64;
+        private int archiveQueue = 192;
+        private int callbackConcurrency = 128;
+        private int callbackQueue = 128;
+    }
+
+    @Data
+    public static class Amqp {
+        // Publish callback-mode requests to a queue instead of running them locally
+        private boolean enabled = false;
+        // Whether this node also runs consumers for the queue
+        private boolean consume = true;
+        private String queue = "spring-web.callback-jobs";
+        // Unacked deliveries per consumer, and consumers per node
+        private int prefetch = 16;
+        private int concurrency = 4;
+    }
+
+    @Data
+    public static class Pool {
+        private String name = "spring-web";
+        // Defaults for every destination, overridable per host:port below
+        private int maxConnections = 500;
+        private int pendingAcquireMaxCount = 1000;
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(5);
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+        private Duration maxLifeTime = Duration.ofMinutes(5);
+        private Duration evictInBackground = Duration.ofSeconds(30);
+        private Map<String, Destination> destinations = new HashMap<>();
+        // Connections opened to paramBaseUrl and archiveBaseUrl once the app is ready
+        private int prewarmConnections = 0;
+        // Publish reactor.netty.connection.provider.* pool gauges to Micrometer
+        private boolean metrics = true;
+    }
+
+    @Data
+    public static class Destination {
+        private Integer maxConnections;
+        private Integer pendingAcquireMaxCount;
+        private Duration pendingAcquireTimeout;
+    }
+
+    @Data
+    public static class Client {
+        private Duration connectTimeout;
+        private Duration responseTimeout;
+        private Duration readTimeout = Duration.ofMillis(500);
+        private Duration writeTimeout = Duration.ofMillis(500);
+
+        public Client(Duration connectTimeout, Duration responseTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.responseTimeout = responseTimeout;
+        }
+    }
+
+    @Data
+    public static class ArchiveBatch {
+        // Send archive writes as bulk POSTs to /archive/batch
+        private boolean enabled = false;
+        // A batch is sent when it reaches maxSize or linger has passed since its first result
+        private int maxSize = 100;
+        private Duration linger = Duration.ofMillis(50);
+        private int maxConcurrentBatches = 4;
+        // Results waiting to be archived before new ones are refused
+        private int capacity = 10000;
+    }
+
+    @Data
+    public static class Http2 {
+        // Offer HTTP/2 on outbound calls: h2 via ALPN for https, h2c for http
+        private boolean enabled = false;
+        // Use h2c with prior knowledge instead of an HTTP/1.1 Upgrade
+        private boolean priorKnowledge = false;
+        private int maxConcurrentStreams = 100;
+        // Connections per destination; each carries up to maxConcurrentStreams
+        private int maxConnections = 4;
+        // Hosts that are always called over HTTP/1.1
+        private List<String> http11Hosts = new ArrayList<>();
+    }
+
+    @Data
+    public static class SingleFlight {
+        // Share one worker call between concurrent identical requests
+        private boolean enabled = false;
+        // In-flight keys tracked at once; calls beyond this go straight to the worker
+        private int maxKeys = 10000;
+    }
+
+    @Data
+    public static class Resilience {
+        // Concurrency limiter and circuit breaker per destination host:port. Off by default:
+        // the limiter starts at initialLimit calls per destination and refuses beyond it.
+        private boolean enabled = false;
+        // Destinations with a guard of their own; callback hosts come from clients, so once
+        // this many are tracked idle guards are dropped and further destinations share one
+        private int maxDestinations = 1000;
+        // AIMD limiter: +1/limit per fast success, *backoffRatio on a slow call or failure
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 500;
+        private Duration latencyThreshold = Duration.ofSeconds(5);
+        private double backoffRatio = 0.9;
+        // Circuit breaker over the last windowSize calls
+        private int windowSize = 50;
+        private int minimumCalls = 20;
+        private double failureRateThreshold = 0.5;
+        private Duration openDuration = Duration.ofSeconds(10);
+        private int halfOpenProbes = 3;
+        // Global retry budget: retries may use retryRatio of requests, plus a small floor
+        private double retryRatio = 0.1;
+        private int minRetriesPerSecond = 10;
+    }
+
+    @Data
+    public static class Jobs {
+        // Callback jobs are kept for ttl after they are created, and at most maxJobs at once
+        private Duration ttl = Duration.ofMinutes(15);
+        private int maxJobs = 100000;
+        // Completions buffered per /jobs/stream subscriber; the oldest are dropped when it falls behind
+        private int streamBuffer = 256;
+        // Comment frames that keep idle /jobs/stream connections open through proxies
+        private Duration heartbeat = Duration.ofSeconds(15);
+        // A /jobs/stream subscription ends after this long; event sources reconnect on their own
+        private Duration streamTimeout = Duration.ofMinutes(30);
+    }
+
+    @Data
+    public static class Bulk {
+        // Requests from one /request/bulk stream that run at once; further lines are read as these finish
+        private int maxConcurrency = 64;
+        // A /request/bulk response still running after this long is ended and its input closed
+        private Duration timeout = Duration.ofMinutes(30);
+    }
+
+    @Data
+    public static class Hedging {
+        // Send a second worker call for idempotent requests that have not answered after a delay
+        private boolean enabled = false;
+        // Fixed hedge delay; when unset, the percentile of recent worker latencies is used
+        private Duration delay;
+        private double percentile = 0.95;
+        private Duration minDelay = Duration.ofMillis(10);
+        // Recent latencies the percentile is taken over; no hedging until a tenth of them are in
+        private int samples = 1000;
+        // Hedges allowed as a share of idempotent worker calls
+        private double maxRatio = 0.05;
+    }
+
+    @Data
+    public static class Balancing {
+        // Endpoints are ejected after this many 5xx or I/O failures in a row
+        private int consecutiveFailures = 5;
+        // Never eject more than this share of a service's endpoints
+        private int maxEjectedPercent = 50;
+        // Ejected endpoints are probed with a GET of probePath and return on a 2xx
+        private Duration probeInterval = Duration.ofSeconds(5);
+        private Duration probeTimeout = Duration.ofSeconds(1);
+        private String probePath = "/actuator/health";
+        // How long an endpoint stays out when probing is off (probeInterval=0)
+        private Duration ejectionTime = Duration.ofSeconds(30);
+    }
+
+    public enum WireFormat {
+        JSON(MediaType.APPLICATION_JSON),
+        SMILE(new MediaType("application", "x-jackson-smile"));
+
+        private final MediaType mediaType;
+
+        WireFormat(MediaType mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        public MediaType mediaType() {
+            return mediaType;
+        }
+    }
+
+    @Data
+    public static class Wire {
+        // Body format for worker and archive calls; callbacks are always JSON
+        private WireFormat format = WireFormat.JSON;
+    }
+
+    @Data
+    public static class Redelivery {
+        // Retry callbacks that fail with a 5xx or I/O error in the background instead of failing the job
+        private boolean enabled = false;
+        // Attempts including the first; a delivery that uses them all goes to the dead-letter file
+        private int maxAttempts = 8;
+        // Attempt n waits initialBackoff * 2^(n-1), capped at maxBackoff, less up to jitter of that
+        private Duration initialBackoff = Duration.ofSeconds(1);
+        private Duration maxBackoff = Duration.ofMinutes(10);
+        private double jitter = 0.5;
+        // Timing wheel resolution and size; due times are rounded up to a tick
+        private Duration tick = Duration.ofMillis(100);
+        private int wheelSize = 512;
+        // Deliveries waiting at once before further failed callbacks fail their job as before
+        private int maxPending = 100000;
+        // Absolute directory for the pending-delivery journal and the dead-letter file; required when enabled
+        private String dir;
+        // Compact the journal once it holds this many finished deliveries
+        private int compactAfter = 10000;
+    }
+
+    @Data
+    public static class Tenants {
+        // Token bucket per tenant: rate requests per second with bursts of up to burst; 0 turns limiting off
+        private double rate = 0;
+        private int burst = 100;
+        // Turns a tenant gets at queued callback pipelines relative to other tenants
+        private int weight = 1;
+        // Per-tenant rate, burst and weight, keyed by tenant id
+        private Map<String, TenantLimit> overrides = new HashMap<>();
+        // Buckets kept at once; full ones are evicted first, then further tenants share one bucket
+        private int maxTenants = 10000;
+        // Take the tenant from X-Tenant or the callback host instead of the remote address; only
+        // behind a proxy that authenticates callers and sets X-Tenant itself
+        private boolean trustCaller = false;
+    }
+
+    @Data
+    public static class TenantLimit {
+        private Double rate;
+        private Integer burst;
+        private Integer weight;
+    }
+
+    @Data
+    public static class PassThrough {
+        // Reactive profile: relay requests without a callback to the worker as raw bytes, both ways.
+        // Needs JSON on the wire and single-flight off, since both work on the bound Request.
+        private boolean enabled = false;
+    }
+
+    @Data
+    public static class Callbacks {
+        // Deliveries in flight per callback host, and deliveries waiting behind them before more are refused
+        private int concurrencyPerHost = 16;
+        private int queuePerHost = 1000;
+        // Targets one request may name, callback and callbacks together; requests with more are refused
+        private int maxCallbacks = 10;
+    }
+
+    @Data
+    public static class Warmup {
+        // Push synthetic requests through the pipeline against a loopback stub before the node reports ready
+        private boolean enabled = false;
+        // Requests sent, half with a callback, and how many are in flight at once; all of them go to
+        // one stub host, so concurrency stays under resilience.initialLimit
+        private int requests = 2000;
+        private int concurrency = 8;
+        // Readiness is not held up longer than this, however far the warm-up got
+        private Duration timeout = Duration.ofSeconds(30);
+        // Exit once warmed up; the faststart build records its class-data archive from such a run
+        private boolean exit = false;
+    }
+
+    @Data
+    public static class ArchiveDedupe {
+        // /archive drops results whose idempotency key it has already stored
+        private boolean enabled = true;
+        // Keys are remembered for at least window, and at most twice that
+        private Duration window = Duration.ofHours(1);
+        // Keys expected per window and the false-positive rate the Bloom filter is sized for
+        private int expectedKeys = 1000000;
+        private double falsePositiveRate = 0.001;
+        // Keys kept exactly; a filter hit that is not among them only counts as a duplicate
+        // when this cache has had to drop keys by size within the window
+        private int exactKeys = 100000;
+    }
+
+    @Data
+    public static class Diagnostics {
+        // Trace requests: an X-Trace-Id header downstream, flight recorder events and the slow-request log.
+        // Off by default, as every request then builds a trace; the tracing profile turns it on
+        private boolean tracing = false;
+        // Requests kept at /actuator/slowrequests, the slowest of the last one to two slowWindows
+        private int slowRequests = 20;
+        private Duration slowWindow = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Simulation {
+        // How the bundled /worker, /archive and /echo stubs answer. With the simulation
+        // profile these can be read and replaced at runtime under /simulation.
+        private final Stub worker = Stub.fixed(Duration.ofSeconds(2));
+        private final Stub archive = Stub.fixed(Duration.ZERO);
+        private final Stub echo = Stub.fixed(Duration.ZERO);
+    }
+
+    @Data
+    public static class Stub {
+        private Latency latency = new Latency();
+        // Share of requests answered with each status code instead, after the latency, e.g. 503: 0.02
+        private Map<Integer, Double> errors = new HashMap<>();
+        // Share of requests whose connection is reset after the latency instead of answered
+        // (simulation profile only, as it needs the Netty connection)
+        private double resetRate = 0;
+        // Share of answers written slowBodyChunkBytes at a time, slowBodyChunkDelay apart
+        // (simulation profile only)
+        private double slowBodyRate = 0;
+        private int slowBodyChunkBytes = 16;
+        private Duration slowBodyChunkDelay = Duration.ofMillis(100);
+
+        static Stub fixed(Duration latency) {
+            Stub stub = new Stub();
+            stub.getLatency().setFixed(latency);
+            return stub;
+        }
+    }
+
+    public enum LatencyDistribution { FIXED, UNIFORM, LOG_NORMAL, BIMODAL }
 
+    @Data
+    public static class Latency {
+        private LatencyDistribution distribution = LatencyDistribution.FIXED;
+        // fixed: always this long
+        private Duration fixed = Duration.ZERO;
+        // uniform: anywhere from min to max
+        private Duration min = Duration.ZERO;
+        private Duration max = Duration.ZERO;
+        // log-normal: half of the answers are quicker than median; sigma widens the tail
+        private Duration median = Duration.ZERO;
+        private double sigma = 0.5;
+        // bimodal: log-normal around median, except for slowRatio of the answers around slowMedian
+        private Duration slowMedian = Duration.ZERO;
+        private double slowRatio = 0;
+    }
 }
@@ -3,19 +3,43 @@ package org.bscode.springweb.controller;
 
 import lombok.AllArgsConstructor;
 import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.ArchiveDedupe;
+import org.bscode.springweb.service.FaultSimulator;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
+// A repeated idempotency key is answered like a stored write, so a writer
+// retrying a write that already landed sees success, but nothing is stored again.
+// A write the simulator fails is not stored either.
 @AllArgsConstructor
 @RestController
 @RequestMapping("/archive")
 public class ArchiveController {
+    private final ArchiveDedupe dedupe;
+    private final FaultSimulator simulator;
+
     @PostMapping()
     public Mono<String> handleEcho(@RequestBody RequestResult req) {
-        return Mono
-                .just("[BS] Archive complete: " + req.getStatus() + "\n");
+        return simulator.answer(FaultSimulator.ARCHIVE, Mono.fromSupplier(() -> {
+            if (!dedupe.firstSeen(req.getIdempotencyKey())) {
+                return "[BS] Archive duplicate: " + req.getStatus() + "\n";
+            }
+            return "[BS] Archive complete: " + req.getStatus() + "\n";
+        }));
+    }
+
+    @PostMapping("/batch")
+    public Mono<String> handleBatch(@RequestBody List<RequestResult> results) {
+        return simulator.answer(FaultSimulator.ARCHIVE, Mono.fromSupplier(() -> {
+            long stored = results.stream()
+                    .filter(result -> dedupe.firstSeen(result.getIdempotencyKey()))
+                    .count();
+            return "[BS] Archive complete: " + stored + " results, " + (results.size() - stored) + " duplicates\n";
+        }));
     }
 }
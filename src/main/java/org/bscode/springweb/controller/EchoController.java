@@ -4,6 +4,7 @@ package org.bscode.springweb.controller;
 import lombok.AllArgsConstructor;
 import org.bscode.springweb.model.Request;
 import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.FaultSimulator;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -14,9 +15,10 @@ import reactor.core.publisher.Mono;
 @RestController
 @RequestMapping("/echo")
 public class EchoController {
+    private final FaultSimulator simulator;
+
     @PostMapping("/")
     public Mono<String> handleEcho(@RequestBody RequestResult req) {
-        return Mono
-                .just("[BS] Request complete: " + req.getStatus() + "\n");
+        return simulator.answer(FaultSimulator.ECHO, Mono.just("[BS] Request complete: " + req.getStatus() + "\n"));
     }
 }
@@ -0,0 +1,59 @@
+package org.bscode.springweb.controller;
+
+import lombok.AllArgsConstructor;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.JobStatus;
+import org.bscode.springweb.service.JobStore;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Set;
+
+@AllArgsConstructor
+@RestController
+@RequestMapping("/jobs")
+public class JobController {
+    private final JobStore jobs;
+    private final SpringWebProperties props;
+
+    @GetMapping("/{id}")
+    public ResponseEntity<JobStatus> getJob(@PathVariable String id) {
+        return ResponseEntity.of(jobs.get(id));
+    }
+
+    // Completed and failed jobs as Server-Sent Events. With ?id=... the stream
+    // only carries those jobs, starts with any that already finished, and ends
+    // once each of them has been sent. Either way it ends after streamTimeout.
+    @GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<JobStatus>> streamJobs(@RequestParam(name = "id", required = false) Set<String> ids) {
+        Flux<JobStatus> finished;
+        if (ids == null || ids.isEmpty()) {
+            finished = jobs.completions();
+        } else {
+            Flux<JobStatus> done = Flux.fromIterable(ids)
+                    .flatMap(id -> Mono.justOrEmpty(jobs.get(id)))
+                    .filter(status -> status.getState().isTerminal());
+            Flux<JobStatus> live = jobs.completions().filter(status -> ids.contains(status.getJobId()));
+            finished = Flux.merge(live, done)
+                    .distinct(JobStatus::getJobId)
+                    .take(ids.size());
+        }
+        Flux<ServerSentEvent<JobStatus>> heartbeats = Flux.interval(props.getJobs().getHeartbeat())
+                .map(tick -> ServerSentEvent.<JobStatus>builder().comment("").build());
+        return finished
+                .take(props.getJobs().getStreamTimeout())
+                .map(status -> ServerSentEvent.builder(status)
+                        .id(status.getJobId())
+                        .event(status.getState().name().toLowerCase())
+                        .build())
+                .publish(events -> Flux.merge(events, heartbeats.takeUntilOther(events.then())));
+    }
+}
@@ -1,22 +1,134 @@
 package org.bscode.springweb.controller;
 
 import lombok.AllArgsConstructor;
+import org.bscode.springweb.config.SpringWebProperties;
 import org.bscode.springweb.model.Request;
 import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.DeadlineExceededException;
+import org.bscode.springweb.service.DownstreamRejectedException;
+import org.bscode.springweb.service.InvalidCallbacksException;
+import org.bscode.springweb.service.PipelineBusyException;
 import org.bscode.springweb.service.RequestService;
+import org.bscode.springweb.service.TenantThrottledException;
+import org.bscode.springweb.service.Tenants;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 
 @AllArgsConstructor
 @RestController
 @RequestMapping("/request")
 public class RequestController {
     private final RequestService service;
+    private final SpringWebProperties props;
+
     @PostMapping("/")
-    public Mono<RequestResult> handleRequest(@RequestBody Request req) {
-        return service.scheduleWork(req);
+    public Mono<RequestResult> handleRequest(@RequestBody Request req,
+                                             @RequestHeader(name = Tenants.HEADER, required = false) String tenant,
+                                             HttpServletRequest request) {
+        return service.scheduleWork(req, Tenants.resolve(tenant, req, request.getRemoteAddr(),
+                service.trustCaller()));
+    }
+
+    // NDJSON in, NDJSON out. Lines are read from the servlet input stream on
+    // demand, on boundedElastic since the reads block, and results are written
+    // there too. The response ends after the bulk timeout, and a response that
+    // ends early, by timeout or because the client went away, cancels the
+    // pipeline and closes the input.
+    @PostMapping(path = "/bulk", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseBodyEmitter handleBulk(@RequestHeader(name = Tenants.HEADER, required = false) String tenant,
+                                          HttpServletRequest request) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+        Flux<String> lines = Flux.<String, BufferedReader>generate(() -> reader, (in, sink) -> {
+            try {
+                String line = in.readLine();
+                if (line == null) {
+                    sink.complete();
+                } else {
+                    sink.next(line);
+                }
+            } catch (IOException e) {
+                sink.error(e);
+            }
+            return in;
+        }, RequestController::close).subscribeOn(Schedulers.boundedElastic());
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(props.getBulk().getTimeout().toMillis()) {
+            @Override
+            protected void extendResponse(ServerHttpResponse outputMessage) {
+                outputMessage.getHeaders().setContentType(MediaType.APPLICATION_NDJSON);
+            }
+        };
+        String caller = Tenants.resolve(tenant, null, request.getRemoteAddr(), service.trustCaller());
+        Disposable results = service.scheduleBulk(lines, caller)
+                .publishOn(Schedulers.boundedElastic())
+                .subscribe(result -> send(emitter, result), emitter::completeWithError, emitter::complete);
+        emitter.onTimeout(results::dispose);
+        emitter.onError(e -> results.dispose());
+        emitter.onCompletion(results::dispose);
+        return emitter;
+    }
+
+    @ExceptionHandler({PipelineBusyException.class, DownstreamRejectedException.class})
+    public ResponseEntity<RequestResult> handleBusy(RuntimeException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(new RequestResult("BUSY"));
+    }
+
+    @ExceptionHandler(TenantThrottledException.class)
+    public ResponseEntity<RequestResult> handleThrottled(TenantThrottledException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(e.retryAfterSeconds()))
+                .body(new RequestResult("THROTTLED"));
+    }
+
+    @ExceptionHandler(InvalidCallbacksException.class)
+    public ResponseEntity<RequestResult> handleInvalidCallbacks(InvalidCallbacksException e) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new RequestResult("INVALID"));
+    }
+
+    @ExceptionHandler(DeadlineExceededException.class)
+    public ResponseEntity<RequestResult> handleExpired(DeadlineExceededException e) {
+        return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                .body(new RequestResult("EXPIRED"));
+    }
+
+    private static void send(ResponseBodyEmitter emitter, RequestResult result) {
+        try {
+            emitter.send(result, MediaType.APPLICATION_JSON);
+            emitter.send("\n", MediaType.TEXT_PLAIN);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void close(BufferedReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // The request is over either way
+        }
     }
 }
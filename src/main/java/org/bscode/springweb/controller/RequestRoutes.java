@@ -0,0 +1,146 @@
+package org.bscode.springweb.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.DeadlineExceededException;
+import org.bscode.springweb.service.Deadlines;
+import org.bscode.springweb.service.DownstreamRejectedException;
+import org.bscode.springweb.service.InvalidCallbacksException;
+import org.bscode.springweb.service.PipelineBusyException;
+import org.bscode.springweb.service.RequestScan;
+import org.bscode.springweb.service.RequestService;
+import org.bscode.springweb.service.TenantThrottledException;
+import org.bscode.springweb.service.Tenants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+// Functional equivalents of the annotated controllers for the reactive
+// profile. Handlers delegate to the controller beans so both modes answer
+// the same way; RouterFunctionMapping runs ahead of the annotated mappings,
+// so these routes win wherever the paths overlap.
+@Configuration
+@Profile("reactive")
+public class RequestRoutes {
+    private static final ObjectReader REQUEST_READER = new ObjectMapper().readerFor(Request.class);
+    private static final ParameterizedTypeReference<List<RequestResult>> RESULT_LIST =
+            new ParameterizedTypeReference<>() { };
+
+    @Bean
+    public RouterFunction<ServerResponse> routes(RequestService service,
+                                                        WorkerController worker,
+                                                        ArchiveController archive,
+                                                        EchoController echo) {
+        return route(POST("/request/"), req -> refusals(service.passThrough()
+                        ? req.bodyToMono(DataBuffer.class).flatMap(body -> relay(service, req, body))
+                        : req.bodyToMono(Request.class).flatMap(body -> schedule(service, req, body))))
+                .andRoute(POST("/request/bulk"), req -> ServerResponse.ok()
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .body(service.scheduleBulk(req.bodyToFlux(String.class), tenant(service, req, null)),
+                                RequestResult.class))
+                .andRoute(POST("/worker"), req -> req.bodyToMono(Request.class)
+                        .flatMap(body -> worker.handleWorkRequest(body,
+                                req.headers().firstHeader(Deadlines.HEADER)))
+                        .flatMap(result -> ServerResponse.ok()
+                                .contentType(negotiate(req))
+                                .bodyValue(result)))
+                .andRoute(POST("/archive"), req -> req.bodyToMono(RequestResult.class)
+                        .flatMap(archive::handleEcho)
+                        .flatMap(body -> ServerResponse.ok().bodyValue(body)))
+                .andRoute(POST("/archive/batch"), req -> req.bodyToMono(RESULT_LIST)
+                        .flatMap(archive::handleBatch)
+                        .flatMap(body -> ServerResponse.ok().bodyValue(body)))
+                .andRoute(POST("/echo/"), req -> req.bodyToMono(RequestResult.class)
+                        .flatMap(echo::handleEcho)
+                        .flatMap(body -> ServerResponse.ok().bodyValue(body)));
+    }
+
+    private static Mono<ServerResponse> schedule(RequestService service, ServerRequest req, Request body) {
+        return service.scheduleWork(body, tenant(service, req, body))
+                .flatMap(result -> ServerResponse.ok()
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(result));
+    }
+
+    // Only requests without a callback are relayed; the rest, and bodies the
+    // scan cannot vouch for, are decoded as before
+    private static Mono<ServerResponse> relay(RequestService service, ServerRequest req, DataBuffer body) {
+        RequestScan scan = RequestScan.of(body);
+        if (scan == null || scan.getCallback() != null) {
+            return Mono.fromCallable(() -> REQUEST_READER.<Request>readValue(body.asInputStream(true)))
+                    .onErrorMap(IOException.class,
+                            e -> new ServerWebInputException("Failed to read HTTP message", null, e))
+                    .flatMap(request -> schedule(service, req, request));
+        }
+        return service.relayWork(body, scan, tenant(service, req, null))
+                .flatMap(result -> ServerResponse.ok()
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(BodyInserters.fromDataBuffers(Mono.just(result))));
+    }
+
+    private static Mono<ServerResponse> refusals(Mono<ServerResponse> response) {
+        return response
+                .onErrorResume(e -> e instanceof PipelineBusyException
+                                || e instanceof DownstreamRejectedException,
+                        e -> ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+                                .header(HttpHeaders.RETRY_AFTER, "1")
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .bodyValue(new RequestResult("BUSY")))
+                .onErrorResume(TenantThrottledException.class,
+                        e -> ServerResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+                                .header(HttpHeaders.RETRY_AFTER, Long.toString(e.retryAfterSeconds()))
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .bodyValue(new RequestResult("THROTTLED")))
+                .onErrorResume(InvalidCallbacksException.class,
+                        e -> ServerResponse.status(HttpStatus.BAD_REQUEST)
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .bodyValue(new RequestResult("INVALID")))
+                .onErrorResume(DeadlineExceededException.class,
+                        e -> ServerResponse.status(HttpStatus.GATEWAY_TIMEOUT)
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .bodyValue(new RequestResult("EXPIRED")));
+    }
+
+    private static String tenant(RequestService service, ServerRequest req, Request body) {
+        return Tenants.resolve(req.headers().firstHeader(Tenants.HEADER), body, req.remoteAddress()
+                .map(address -> address.getAddress() != null ? address.getAddress().getHostAddress()
+                        : address.getHostString())
+                .orElse(null), service.trustCaller());
+    }
+
+    // Functional routes do not negotiate on their own; internal hops may ask for Smile
+    private static MediaType negotiate(ServerRequest req) {
+        List<MediaType> accept = new ArrayList<>(req.headers().accept());
+        MediaType.sortBySpecificityAndQuality(accept);
+        for (MediaType type : accept) {
+            if (type.equalsTypeAndSubtype(SpringWebProperties.WireFormat.SMILE.mediaType())) {
+                return SpringWebProperties.WireFormat.SMILE.mediaType();
+            }
+            if (type.includes(MediaType.APPLICATION_JSON)) {
+                return MediaType.APPLICATION_JSON;
+            }
+        }
+        return MediaType.APPLICATION_JSON;
+    }
+}
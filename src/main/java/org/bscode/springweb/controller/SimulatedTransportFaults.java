@@ -0,0 +1,113 @@
+package org.bscode.springweb.controller;
+
+import io.netty.channel.ChannelOption;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.service.FaultSimulator;
+import org.reactivestreams.Publisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.Connection;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The faults the stubs cannot produce from a handler: a connection reset
+// once the latency has passed, and an answer written a few bytes at a time.
+// Both need Reactor Netty, which the simulation profile runs on. A reset
+// closes the connection with SO_LINGER 0, so the client sees an RST rather
+// than a clean close; on h2c the stream is reset instead.
+@Slf4j
+@AllArgsConstructor
+@Component
+@Profile("simulation")
+public class SimulatedTransportFaults implements WebFilter {
+    private final FaultSimulator simulator;
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        String stub = stub(exchange.getRequest().getPath().value());
+        if (stub == null) {
+            return chain.filter(exchange);
+        }
+        FaultSimulator.Behaviour behaviour = simulator.behaviour(stub);
+        switch (behaviour.transport()) {
+            case RESET:
+                return exchange.getRequest().getBody()
+                        .doOnNext(DataBufferUtils::release)
+                        .then(Mono.delay(Duration.ofNanos(behaviour.latencyNanos())))
+                        .doOnNext(tick -> reset(exchange))
+                        .then();
+            case SLOW_BODY:
+                return chain.filter(exchange.mutate()
+                        .response(new SlowBody(exchange.getResponse(), behaviour.chunkBytes(), behaviour.chunkDelay()))
+                        .build());
+            default:
+                return chain.filter(exchange);
+        }
+    }
+
+    private static String stub(String path) {
+        if (path.equals("/worker")) {
+            return FaultSimulator.WORKER;
+        }
+        if (path.equals("/archive") || path.equals("/archive/batch")) {
+            return FaultSimulator.ARCHIVE;
+        }
+        if (path.equals("/echo/")) {
+            return FaultSimulator.ECHO;
+        }
+        return null;
+    }
+
+    private static void reset(ServerWebExchange exchange) {
+        Object request = ServerHttpRequestDecorator.getNativeRequest(exchange.getRequest());
+        if (request instanceof Connection) {
+            Connection connection = (Connection) request;
+            connection.channel().config().setOption(ChannelOption.SO_LINGER, 0);
+            connection.channel().close();
+        } else {
+            log.warn("Cannot reset a connection on {}", request.getClass().getName());
+        }
+    }
+
+    // Copies the answer into chunks and flushes each one after the delay
+    private static final class SlowBody extends ServerHttpResponseDecorator {
+        private final int chunkBytes;
+        private final Duration chunkDelay;
+
+        SlowBody(ServerHttpResponse delegate, int chunkBytes, Duration chunkDelay) {
+            super(delegate);
+            this.chunkBytes = chunkBytes;
+            this.chunkDelay = chunkDelay;
+        }
+
+        @Override
+        public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+            Flux<DataBuffer> chunks = Flux.from(body).concatMapIterable(buffer -> {
+                byte[] bytes = new byte[buffer.readableByteCount()];
+                buffer.read(bytes);
+                DataBufferUtils.release(buffer);
+                List<DataBuffer> pieces = new ArrayList<>();
+                for (int offset = 0; offset < bytes.length; offset += chunkBytes) {
+                    pieces.add(bufferFactory().wrap(Arrays.copyOfRange(bytes, offset,
+                            Math.min(bytes.length, offset + chunkBytes))));
+                }
+                return pieces;
+            });
+            return super.writeAndFlushWith(chunks.delayElements(chunkDelay).map(Mono::just));
+        }
+    }
+}
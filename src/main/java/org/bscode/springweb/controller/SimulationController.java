@@ -0,0 +1,46 @@
+package org.bscode.springweb.controller;
+
+import lombok.AllArgsConstructor;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.service.FaultSimulator;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Map;
+
+// Reads and replaces the stub settings while the node runs, e.g.
+//   curl -X PUT localhost:8080/simulation/worker -H 'Content-Type: application/json' \
+//       -d '{"latency":{"distribution":"LOG_NORMAL","median":"PT0.05S","sigma":0.8},"errors":{"503":0.02}}'
+// Settings left out of the body take their defaults, not their current values.
+@AllArgsConstructor
+@RestController
+@Profile("simulation")
+@RequestMapping("/simulation")
+public class SimulationController {
+    private final FaultSimulator simulator;
+
+    @GetMapping
+    public Map<String, SpringWebProperties.Stub> settings() {
+        return simulator.settings();
+    }
+
+    @PutMapping("/{stub}")
+    public SpringWebProperties.Stub configure(@PathVariable String stub, @RequestBody SpringWebProperties.Stub settings) {
+        if (!simulator.settings().containsKey(stub)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No stub named " + stub);
+        }
+        try {
+            simulator.configure(stub, settings);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        return settings;
+    }
+}
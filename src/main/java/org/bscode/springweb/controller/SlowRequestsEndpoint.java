@@ -0,0 +1,24 @@
+package org.bscode.springweb.controller;
+
+import lombok.AllArgsConstructor;
+import org.bscode.springweb.model.SlowRequest;
+import org.bscode.springweb.service.RequestService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+// /actuator/slowrequests: the slowest recent requests, slowest first, each
+// with its trace id and where the time went. Empty unless tracing is on.
+@AllArgsConstructor
+@Component
+@Endpoint(id = "slowrequests")
+public class SlowRequestsEndpoint {
+    private final RequestService service;
+
+    @ReadOperation
+    public List<SlowRequest> slowRequests() {
+        return service.slowRequests();
+    }
+}
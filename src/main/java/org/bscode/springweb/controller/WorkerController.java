@@ -4,24 +4,41 @@ import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bscode.springweb.model.Request;
 import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.Deadlines;
+import org.bscode.springweb.service.FaultSimulator;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
 
-import java.time.Duration;
-
 @Slf4j
 @AllArgsConstructor
 @RestController
 @RequestMapping("/worker")
 public class WorkerController {
+    private final FaultSimulator simulator;
+
     @PostMapping()
-    public Mono<RequestResult> handleWorkRequest(@RequestBody Request req) {
+    public Mono<RequestResult> handleWorkRequest(@RequestBody Request req,
+                                                 @RequestHeader(name = Deadlines.HEADER, required = false) String deadline) {
         log.debug("in HandleWorkRequest");
-        return Mono
-                .just(new RequestResult("OK"))
-                .delayElement(Duration.ofSeconds(2));
+        // Work the caller has already given up on is not started
+        if (deadline != null) {
+            long millis;
+            try {
+                millis = Long.parseLong(deadline.trim());
+            } catch (NumberFormatException e) {
+                return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Malformed " + Deadlines.HEADER + " header"));
+            }
+            if (Deadlines.expired(millis)) {
+                return Mono.error(new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Deadline passed"));
+            }
+        }
+        return simulator.answer(FaultSimulator.WORKER, Mono.just(new RequestResult("OK")));
     }
 }
@@ -0,0 +1,17 @@
+package org.bscode.springweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Value;
+
+import java.time.Instant;
+
+// Where the result of a job stands with one of its callback targets
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeliveryOutcome {
+    String target;
+    DeliveryState state;
+    String response;
+    String error;
+    Instant updated;
+}
@@ -0,0 +1,9 @@
+package org.bscode.springweb.model;
+
+public enum DeliveryState {
+    PENDING, REDELIVERY, DELIVERED, FAILED;
+
+    public boolean isFinal() {
+        return this == DELIVERED || this == FAILED;
+    }
+}
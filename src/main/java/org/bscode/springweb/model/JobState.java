@@ -0,0 +1,9 @@
+package org.bscode.springweb.model;
+
+public enum JobState {
+    QUEUED, WORKER, ARCHIVE, CALLBACK, REDELIVERY, COMPLETED, FAILED;
+
+    public boolean isTerminal() {
+        return this == COMPLETED || this == FAILED;
+    }
+}
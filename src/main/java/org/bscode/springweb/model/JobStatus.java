@@ -0,0 +1,22 @@
+package org.bscode.springweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.List;
+
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class JobStatus {
+    String jobId;
+    JobState state;
+    // Worker result once the worker stage is done, kept even if the callback fails
+    RequestResult result;
+    // Answer of the first callback target
+    String callbackResponse;
+    String error;
+    // One entry per callback target once the callback stage has started
+    List<DeliveryOutcome> deliveries;
+    Instant updated;
+}
@@ -2,19 +2,80 @@ package org.bscode.springweb.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Value;
+import lombok.With;
 
 import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 @Value
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Request implements Serializable {
+    public Request(String callback) {
+        this(callback, null, false, null, 0);
+    }
+
+    public Request(String callback, String jobId, boolean idempotent, Long deadline, int priority) {
+        this(callback, null, jobId, idempotent, deadline, priority);
+    }
+
     @JsonCreator
     public Request(
-            @JsonProperty("callback") String callback){
+            @JsonProperty("callback") String callback,
+            @JsonProperty("callbacks") List<String> callbacks,
+            @JsonProperty("jobId") String jobId,
+            @JsonProperty("idempotent") boolean idempotent,
+            @JsonProperty("deadline") Long deadline,
+            @JsonProperty("priority") int priority){
         this.callback = callback;
+        this.callbacks = callbacks;
+        this.jobId = jobId;
+        this.idempotent = idempotent;
+        this.deadline = deadline;
+        this.priority = priority;
     }
     @JsonProperty
     private String callback;
+    // Further targets that get the same result, delivered in parallel with callback
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private List<String> callbacks;
+    // Assigned by RequestService for callback-mode work; travels with the job over the transport
+    @With
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String jobId;
+    // Safe to send to the worker more than once, which allows hedging
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private boolean idempotent;
+    // Epoch millis after which the caller no longer wants the result
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long deadline;
+    // Queued callback work with a higher priority runs first
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int priority;
+
+    // callback followed by callbacks, without repeats; empty for synchronous requests
+    public List<String> targets() {
+        if (callbacks == null || callbacks.isEmpty()) {
+            return callback == null ? List.of() : List.of(callback);
+        }
+        Set<String> targets = new LinkedHashSet<>();
+        if (callback != null) {
+            targets.add(callback);
+        }
+        for (String target : callbacks) {
+            if (target != null) {
+                targets.add(target);
+            }
+        }
+        return List.copyOf(targets);
+    }
 }
@@ -1,16 +1,37 @@
 package org.bscode.springweb.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.With;
 
 @Data
 public class RequestResult {
     private final String status;
+    @With
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String jobId;
+    // Set on the archive hop only; the same result keeps the same key across retries
+    @With
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String idempotencyKey;
+
+    public RequestResult(String status) {
+        this(status, null);
+    }
+
+    public RequestResult(String status, String jobId) {
+        this(status, jobId, null);
+    }
+
     @JsonCreator
     public RequestResult(
-            @JsonProperty("status") String status){
+            @JsonProperty("status") String status,
+            @JsonProperty("jobId") String jobId,
+            @JsonProperty("idempotencyKey") String idempotencyKey){
         this.status = status;
+        this.jobId = jobId;
+        this.idempotencyKey = idempotencyKey;
     }
 }
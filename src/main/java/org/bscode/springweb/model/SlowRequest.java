@@ -0,0 +1,30 @@
+package org.bscode.springweb.model;
+
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+// A request from the slow-request log with what its time went on. Spans are
+// in the order they ended; offsets are from the start of the request.
+@Value
+public class SlowRequest {
+    String traceId;
+    // "sync" or "callback"
+    String kind;
+    Instant started;
+    double millis;
+    String outcome;
+    List<Span> spans;
+    // Downstream attempts per stage; more than one means retries or hedges
+    Map<String, Integer> attempts;
+
+    @Value
+    public static class Span {
+        String name;
+        double offsetMillis;
+        double millis;
+        String outcome;
+    }
+}
@@ -0,0 +1,16 @@
+package org.bscode.springweb.queue;
+
+import org.bscode.springweb.model.Request;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Function;
+
+// Moves callback-mode requests between nodes. A delivery is acknowledged only
+// once the handler's Mono completes; an error hands it back to the transport.
+public interface JobTransport {
+    void publish(Request req);
+
+    void start(Function<Request, Mono<?>> handler);
+
+    void stop();
+}
@@ -0,0 +1,109 @@
+package org.bscode.springweb.queue;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+// Publishes callback-mode requests to a durable queue and consumes them with
+// manual acks: a message is acked when the pipeline completes, requeued once on
+// failure and rejected (dead-lettered if the queue has a DLX) after that.
+@Slf4j
+public class RabbitJobTransport implements JobTransport {
+    private final SpringWebProperties.Amqp props;
+    private final RabbitTemplate template;
+    private final ConnectionFactory connectionFactory;
+    private final ObjectMapper mapper;
+    private SimpleMessageListenerContainer container;
+
+    public RabbitJobTransport(SpringWebProperties.Amqp props, RabbitTemplate template,
+                              ConnectionFactory connectionFactory, ObjectMapper mapper) {
+        this.props = props;
+        this.template = template;
+        this.connectionFactory = connectionFactory;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public void publish(Request req) {
+        try {
+            Message message = MessageBuilder.withBody(mapper.writeValueAsBytes(req))
+                    .setContentType(MediaType.APPLICATION_JSON_VALUE)
+                    .setDeliveryMode(MessageDeliveryMode.PERSISTENT)
+                    .build();
+            template.send("", props.getQueue(), message);
+        } catch (JsonProcessingException e) {
+            throw new AmqpException("Could not serialize request", e);
+        }
+    }
+
+    @Override
+    public synchronized void start(Function<Request, Mono<?>> handler) {
+        if (!props.isConsume() || container != null) {
+            return;
+        }
+        container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(props.getQueue());
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        container.setPrefetchCount(props.getPrefetch());
+        container.setConcurrentConsumers(props.getConcurrency());
+        container.setMessageListener((ChannelAwareMessageListener) (message, channel) -> {
+            long tag = message.getMessageProperties().getDeliveryTag();
+            boolean redelivered = Boolean.TRUE.equals(message.getMessageProperties().getRedelivered());
+            Request req;
+            try {
+                req = mapper.readValue(message.getBody(), Request.class);
+            } catch (IOException e) {
+                log.error("Dropping unreadable job message", e);
+                channel.basicReject(tag, false);
+                return;
+            }
+            handler.apply(req).subscribe(
+                    result -> { },
+                    e -> nack(channel, tag, redelivered, e),
+                    () -> ack(channel, tag));
+        });
+        container.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (container != null) {
+            container.stop();
+            container = null;
+        }
+    }
+
+    private void ack(Channel channel, long tag) {
+        try {
+            channel.basicAck(tag, false);
+        } catch (IOException e) {
+            log.error("Could not ack job {}", tag, e);
+        }
+    }
+
+    private void nack(Channel channel, long tag, boolean redelivered, Throwable error) {
+        log.error("Job {} failed, {}", tag, redelivered ? "rejecting" : "requeueing", error);
+        try {
+            channel.basicNack(tag, false, !redelivered);
+        } catch (IOException e) {
+            log.error("Could not nack job {}", tag, e);
+        }
+    }
+}
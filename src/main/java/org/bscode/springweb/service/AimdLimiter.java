@@ -0,0 +1,64 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Additive-increase/multiplicative-decrease concurrency limit. The limit grows
+// by roughly one per window of fast successes and shrinks by backoffRatio on
+// every slow call or failure.
+class AimdLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+
+    public AimdLimiter(SpringWebProperties.Resilience props) {
+        this.minLimit = props.getMinLimit();
+        this.maxLimit = props.getMaxLimit();
+        this.latencyThresholdNanos = props.getLatencyThreshold().toNanos();
+        this.backoffRatio = props.getBackoffRatio();
+        this.limit = props.getInitialLimit();
+    }
+
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public synchronized void onSuccess(long latencyNanos) {
+        if (latencyNanos > latencyThresholdNanos) {
+            decrease();
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    public synchronized void onFailure() {
+        decrease();
+    }
+
+    public int limit() {
+        return (int) limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    private void decrease() {
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+}
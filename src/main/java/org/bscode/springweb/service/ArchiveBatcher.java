@@ -0,0 +1,75 @@
+package org.bscode.springweb.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.RequestResult;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// Write-behind buffer in front of the archive. Results are grouped into
+// batches bounded by size and linger time and handed to the sender as one
+// list; every caller's Mono completes or fails with its batch.
+@Slf4j
+class ArchiveBatcher {
+    private final int capacity;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Function<List<RequestResult>, Mono<Void>> sender;
+    private final Disposable subscription;
+    private FluxSink<Pending> sink;
+
+    public ArchiveBatcher(SpringWebProperties.ArchiveBatch props,
+                          Function<List<RequestResult>, Mono<Void>> sender) {
+        this.capacity = props.getCapacity();
+        this.sender = sender;
+        subscription = Flux.<Pending>create(s -> sink = s)
+                .bufferTimeout(props.getMaxSize(), props.getLinger())
+                .onBackpressureBuffer()
+                .flatMap(this::send, props.getMaxConcurrentBatches())
+                .subscribe();
+    }
+
+    public Mono<RequestResult> submit(RequestResult result) {
+        return Mono.create(caller -> {
+            if (pending.incrementAndGet() > capacity) {
+                pending.decrementAndGet();
+                caller.error(new PipelineBusyException("Archive batch buffer is full"));
+                return;
+            }
+            sink.next(new Pending(result, caller));
+        });
+    }
+
+    public void dispose() {
+        subscription.dispose();
+    }
+
+    private Mono<Void> send(List<Pending> batch) {
+        List<RequestResult> results = batch.stream().map(p -> p.result).collect(Collectors.toList());
+        return sender.apply(results)
+                .doOnSuccess(v -> batch.forEach(p -> p.caller.success(p.result)))
+                .onErrorResume(e -> {
+                    log.error("Archive batch of {} failed", batch.size(), e);
+                    batch.forEach(p -> p.caller.error(e));
+                    return Mono.empty();
+                })
+                .doFinally(signal -> pending.addAndGet(-batch.size()));
+    }
+
+    private static class Pending {
+        final RequestResult result;
+        final MonoSink<RequestResult> caller;
+
+        Pending(RequestResult result, MonoSink<RequestResult> caller) {
+            this.result = result;
+            this.caller = caller;
+        }
+    }
+}
@@ -1,60 +1,125 @@
 package org.bscode.springweb.service;
 
-import io.netty.channel.ChannelOption;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import io.netty.handler.timeout.WriteTimeoutHandler;
 import lombok.extern.slf4j.Slf4j;
 import org.bscode.springweb.config.SpringWebProperties;
 import org.bscode.springweb.model.RequestResult;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
 import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 @Slf4j
 class ArchiveClient {
     private final SpringWebProperties props;
-    private final WebClient client;
+    private final EndpointBalancer endpoints;
+    private final Map<String, WebClient> clients = new HashMap<>();
+    private final ArchiveBatcher batcher;
+    private final DownstreamGuards guards;
+    private final PipelineMetrics metrics;
+    private final MediaType wireType;
+    private final MediaType[] wireAccept;
 
-    public ArchiveClient(SpringWebProperties props) {
+    public ArchiveClient(SpringWebProperties props, HttpClientFactory factory, DownstreamGuards guards,
+                         PipelineMetrics metrics) {
         this.props = props;
-        HttpClient httpClient = HttpClient.create()
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 250)
-                .responseTimeout(Duration.ofSeconds(500))
-                .doOnConnected(conn ->
-                        conn.addHandlerLast(new ReadTimeoutHandler(500, TimeUnit.MILLISECONDS))
-                                .addHandlerLast(new WriteTimeoutHandler(500, TimeUnit.MILLISECONDS)));
-        client = WebClient.builder()
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
-                .baseUrl(props.getArchiveBaseUrl()+ "/archive")
-                .build();
+        this.guards = guards;
+        this.metrics = metrics;
+        wireType = factory.wireType();
+        wireAccept = factory.wireAccept();
+        endpoints = new EndpointBalancer(props.getArchiveBaseUrl(), props.getBalancing(), this::probe);
+        for (EndpointBalancer.Endpoint endpoint : endpoints.endpoints()) {
+            clients.put(endpoint.url, factory.webClient(props.getArchiveClient(), endpoint.url)
+                    .baseUrl(endpoint.url + "/archive")
+                    .filter(Deadlines.propagate())
+                    .filter(Traces.propagate(PipelineMetrics.Stage.ARCHIVE))
+                    .build());
+        }
+        metrics.bindEndpoints(PipelineMetrics.Stage.ARCHIVE, endpoints);
+        batcher = props.getArchiveBatch().isEnabled()
+                ? new ArchiveBatcher(props.getArchiveBatch(), this::callArchiveBatch)
+                : null;
     }
 
+    // The archive gets the result with an idempotency key, so a retry after a
+    // write that did land is recognised there; the caller gets it back as it was
     public Mono<RequestResult> callArchive(RequestResult result) {
-        return client
+        RequestResult keyed = result.getIdempotencyKey() != null ? result : result.withIdempotencyKey(key(result));
+        if (batcher != null) {
+            return metrics.time(PipelineMetrics.Stage.ARCHIVE, Deadlines.within(batcher.submit(keyed)))
+                    .thenReturn(result);
+        }
+        return metrics.time(PipelineMetrics.Stage.ARCHIVE, Deadlines.within(guards.protect(endpoints, url -> clients.get(url)
                 .post()
-                .body(Mono.just(result), RequestResult.class)
-                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .accept(MediaType.APPLICATION_JSON)
+                .body(Mono.just(keyed), RequestResult.class)
+                .header(HttpHeaders.CONTENT_TYPE, wireType.toString())
+                .accept(wireAccept)
                 .acceptCharset(StandardCharsets.UTF_8)
                 .exchangeToMono(response -> {
                     if (response.statusCode().equals(HttpStatus.OK)) {
                         return Mono.just(result);
                     } else if (response.statusCode().is4xxClientError()) {
                         log.error("Status code for callback: {}", response.statusCode());
+                        metrics.clientError(PipelineMetrics.Stage.ARCHIVE);
                         return Mono.just(result);
                     } else {
                         return response.createException().flatMap(Mono::error);
                     }
-                })
-                .retryWhen(Retry.backoff(2, Duration.ofMillis(600)));
+                }), retry())));
+    }
+
+    Mono<Void> callArchiveBatch(List<RequestResult> results) {
+        return guards.protect(endpoints, url -> clients.get(url)
+                .post()
+                .uri("/batch")
+                .bodyValue(results)
+                .header(HttpHeaders.CONTENT_TYPE, wireType.toString())
+                .accept(wireAccept)
+                .acceptCharset(StandardCharsets.UTF_8)
+                .exchangeToMono(response -> {
+                    if (response.statusCode().equals(HttpStatus.OK)) {
+                        return response.releaseBody();
+                    } else if (response.statusCode().is4xxClientError()) {
+                        log.error("Status code for archive batch: {}", response.statusCode());
+                        metrics.clientError(PipelineMetrics.Stage.ARCHIVE);
+                        return response.releaseBody();
+                    } else {
+                        return response.createException().flatMap(Mono::error);
+                    }
+                }), retry());
+    }
+
+    // A job is archived once, so its id is its key; anything else gets a key
+    // of its own, made once per call so that retries share it
+    static String key(RequestResult result) {
+        return result.getJobId() != null ? result.getJobId() : UUID.randomUUID().toString();
+    }
+
+    private RetryBackoffSpec retry() {
+        return Retry.backoff(2, Duration.ofMillis(600))
+                .doBeforeRetry(signal -> metrics.retry(PipelineMetrics.Stage.ARCHIVE));
+    }
+
+    private Mono<?> probe(String url) {
+        return clients.get(url).get()
+                .uri(url + props.getBalancing().getProbePath())
+                .retrieve()
+                .toBodilessEntity();
+    }
+
+    public void dispose() {
+        if (batcher != null) {
+            batcher.dispose();
+        }
+        endpoints.dispose();
     }
 }
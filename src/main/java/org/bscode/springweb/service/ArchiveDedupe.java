@@ -0,0 +1,106 @@
+package org.bscode.springweb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tells the archive whether it has already stored a result with a given
+// idempotency key. Recent keys are kept exactly, evicted in insertion order
+// like JobStore's entries; a windowed Bloom filter remembers every key of the
+// window in fixed memory. A key the exact cache still has is a duplicate. A
+// filter hit on a key the cache does not have is either a key the cache had
+// to drop for size, or a false positive: it only counts as a duplicate while
+// the cache has been dropping keys for size within the window, since
+// otherwise the cache would still hold it.
+@Component
+public class ArchiveDedupe {
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int exactKeys;
+    private final WindowedBloomFilter filter;
+    private final Map<String, Long> recent = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile long lastOverflow;
+    private final Counter exact;
+    private final Counter probable;
+    private final Counter unconfirmed;
+
+    public ArchiveDedupe(SpringWebProperties props, MeterRegistry registry) {
+        SpringWebProperties.ArchiveDedupe dedupe = props.getArchiveDedupe();
+        this.enabled = dedupe.isEnabled();
+        this.windowNanos = dedupe.getWindow().toNanos();
+        this.exactKeys = dedupe.getExactKeys();
+        this.filter = new WindowedBloomFilter(dedupe.getExpectedKeys(), dedupe.getFalsePositiveRate(),
+                dedupe.getWindow());
+        this.lastOverflow = System.nanoTime() - windowNanos;
+        exact = duplicates(registry, "exact");
+        probable = duplicates(registry, "probable");
+        unconfirmed = Counter.builder("springweb.archive.dedupe.unconfirmed")
+                .description("Bloom filter hits stored anyway, as false positives or keys older than the window")
+                .register(registry);
+        Gauge.builder("springweb.archive.dedupe.keys", size, AtomicInteger::get).register(registry);
+    }
+
+    // True the first time a key is seen within the window; results without a key always are
+    public boolean firstSeen(String key) {
+        if (!enabled || key == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        evict(now);
+        if (recent.putIfAbsent(key, now) != null) {
+            exact.increment();
+            return false;
+        }
+        order.offer(key);
+        size.incrementAndGet();
+        if (filter.mightContain(key, now)) {
+            if (now - lastOverflow < windowNanos) {
+                probable.increment();
+                return false;
+            }
+            unconfirmed.increment();
+        }
+        filter.add(key, now);
+        return true;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private void evict(long now) {
+        String head;
+        while ((head = order.peek()) != null) {
+            Long added = recent.get(head);
+            boolean full = size.get() > exactKeys;
+            if (added != null && now - added < windowNanos && !full) {
+                return;
+            }
+            if (order.remove(head)) {
+                if (added != null && recent.remove(head, added)) {
+                    size.decrementAndGet();
+                }
+                if (full) {
+                    lastOverflow = now;
+                }
+            }
+        }
+    }
+
+    private static Counter duplicates(MeterRegistry registry, String match) {
+        return Counter.builder("springweb.archive.duplicates")
+                .description("Archive writes dropped as repeats of an already stored idempotency key")
+                .tag("match", match)
+                .register(registry);
+    }
+}
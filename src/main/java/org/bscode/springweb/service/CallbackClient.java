@@ -1,44 +1,68 @@
 package org.bscode.springweb.service;
 
-import io.netty.channel.ChannelOption;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import io.netty.handler.timeout.WriteTimeoutHandler;
 import lombok.extern.slf4j.Slf4j;
 import org.bscode.springweb.config.SpringWebProperties;
 import org.bscode.springweb.model.RequestResult;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
 
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
-import java.util.concurrent.TimeUnit;
+import java.util.EnumMap;
+import java.util.Map;
 
 @Slf4j
 class CallbackClient {
     private final SpringWebProperties props;
-    private final WebClient client;
+    private final HttpClientFactory factory;
+    private final Map<HttpClientFactory.Transport, WebClient> clients = new EnumMap<>(HttpClientFactory.Transport.class);
+    private final DownstreamGuards guards;
+    private final PipelineMetrics metrics;
+    private final CallbackLanes lanes;
 
-    public CallbackClient(SpringWebProperties props) {
+    public CallbackClient(SpringWebProperties props, HttpClientFactory factory, DownstreamGuards guards,
+                          PipelineMetrics metrics) {
         this.props = props;
-        HttpClient httpClient = HttpClient.create()
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 250)
-                .responseTimeout(Duration.ofSeconds(500))
-                .doOnConnected(conn ->
-                        conn.addHandlerLast(new ReadTimeoutHandler(500, TimeUnit.MILLISECONDS))
-                                .addHandlerLast(new WriteTimeoutHandler(500, TimeUnit.MILLISECONDS)));
-        client = WebClient.builder()
-                .clientConnector(new ReactorClientHttpConnector(httpClient)).build();
+        this.factory = factory;
+        this.guards = guards;
+        this.metrics = metrics;
+        this.lanes = new CallbackLanes(props.getCallbacks());
+        metrics.bindCallbackLanes(lanes);
+        // Callback targets are arbitrary hosts, so keep one client per transport
+        for (HttpClientFactory.Transport transport : HttpClientFactory.Transport.values()) {
+            if (transport == HttpClientFactory.Transport.HTTP11 || props.getHttp2().isEnabled()) {
+                clients.put(transport, factory.webClient(props.getCallbackClient(), transport)
+                        .filter(Traces.record(PipelineMetrics.Stage.CALLBACK))
+                        .build());
+            }
+        }
     }
 
+    // Targets come from clients, so a malformed one fails its own call when
+    // subscribed rather than whoever is assembling the calls
     public Mono<String> callCallback(String callback, RequestResult result) {
+        return Mono.defer(() -> call(callback, result));
+    }
+
+    // Whether the target is an absolute http or https URL with a host
+    static boolean isValidTarget(String callback) {
+        try {
+            URI uri = URI.create(callback);
+            return uri.getHost() != null
+                    && ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private Mono<String> call(String callback, RequestResult result) {
+        WebClient client = clients.get(factory.transportFor(callback));
         WebClient.RequestBodySpec bodySpec = client.post().uri(callback);
         WebClient.RequestHeadersSpec<?> headersSpec = bodySpec.body(Mono.just(result), RequestResult.class);
-        return headersSpec.header(
+        Mono<String> call = guards.protect(callback, headersSpec.header(
                         HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
                 .accept(MediaType.APPLICATION_JSON)
                 .acceptCharset(StandardCharsets.UTF_8)
@@ -47,10 +71,15 @@ class CallbackClient {
                         return response.bodyToMono(String.class);
                     } else if (response.statusCode().is4xxClientError()) {
                         log.error("Status code for callback: {}", response.statusCode());
+                        metrics.clientError(PipelineMetrics.Stage.CALLBACK);
                         return Mono.just("ERROR");
                     } else {
                         return response.createException().flatMap(Mono::error);
                     }
-                });
+                }));
+        // Time queued in the host's lane counts against the deadline but not the stage timer
+        // Lanes and guards share one key, so http://h and http://h:80 are one host to both
+        return Deadlines.within(lanes.submit(DownstreamGuards.destination(callback),
+                metrics.time(PipelineMetrics.Stage.CALLBACK, call)));
     }
 }
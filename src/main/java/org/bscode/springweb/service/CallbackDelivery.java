@@ -0,0 +1,46 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+import lombok.With;
+import org.bscode.springweb.model.RequestResult;
+
+// A callback waiting for its next attempt, as kept on the timing wheel and in
+// the redelivery journal
+@Value
+class CallbackDelivery {
+    @JsonCreator
+    CallbackDelivery(
+            @JsonProperty("id") String id,
+            @JsonProperty("callback") String callback,
+            @JsonProperty("result") RequestResult result,
+            @JsonProperty("attempts") int attempts,
+            @JsonProperty("due") long due,
+            @JsonProperty("deadline") Long deadline) {
+        this.id = id;
+        this.callback = callback;
+        this.result = result;
+        this.attempts = attempts;
+        this.due = due;
+        this.deadline = deadline;
+    }
+    @JsonProperty
+    String id;
+    @JsonProperty
+    String callback;
+    @JsonProperty
+    RequestResult result;
+    // Attempts made so far, including the one from the pipeline
+    @With
+    @JsonProperty
+    int attempts;
+    // Epoch millis of the next attempt
+    @With
+    @JsonProperty
+    long due;
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Long deadline;
+}
@@ -0,0 +1,125 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.util.context.Context;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One lane per callback host, each with its own cap on deliveries in flight
+// and its own bounded queue behind that cap, so a slow subscriber only backs
+// up its own lane. Lanes are created on first use and dropped once idle;
+// every change to a lane happens inside the map's per-key compute, so a lane
+// is never dropped while a delivery is being added to it.
+class CallbackLanes {
+    private final int concurrency;
+    private final int queueCapacity;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    public CallbackLanes(SpringWebProperties.Callbacks props) {
+        this.concurrency = props.getConcurrencyPerHost();
+        this.queueCapacity = props.getQueuePerHost();
+    }
+
+    public int lanes() {
+        return lanes.size();
+    }
+
+    // Fails with DownstreamRejectedException when the host's queue is full
+    public <T> Mono<T> submit(String host, Mono<T> delivery) {
+        return Mono.create(sink -> {
+            Task<T> task = new Task<>(host, delivery, sink);
+            boolean[] accepted = {true};
+            boolean[] start = {false};
+            lanes.compute(host, (key, lane) -> {
+                if (lane == null) {
+                    lane = new Lane();
+                }
+                if (lane.inFlight < concurrency) {
+                    lane.inFlight++;
+                    start[0] = true;
+                } else if (lane.waiting.size() < queueCapacity) {
+                    lane.waiting.offer(task);
+                } else {
+                    accepted[0] = false;
+                }
+                return lane;
+            });
+            if (!accepted[0]) {
+                sink.error(new DownstreamRejectedException("Callback queue for " + host + " is full"));
+                return;
+            }
+            sink.onCancel(task::cancel);
+            if (start[0]) {
+                task.run();
+            }
+        });
+    }
+
+    private void release(String host) {
+        Task<?>[] next = {null};
+        lanes.computeIfPresent(host, (key, lane) -> {
+            next[0] = lane.waiting.poll();
+            if (next[0] == null) {
+                lane.inFlight--;
+            }
+            return lane.idle() ? null : lane;
+        });
+        if (next[0] != null) {
+            next[0].run();
+        }
+    }
+
+    private static final class Lane {
+        final Queue<Task<?>> waiting = new ArrayDeque<>();
+        int inFlight;
+
+        boolean idle() {
+            return inFlight == 0 && waiting.isEmpty();
+        }
+    }
+
+    private final class Task<T> {
+        final String host;
+        final Mono<T> delivery;
+        final MonoSink<T> sink;
+        volatile boolean cancelled;
+        volatile Disposable running;
+
+        Task(String host, Mono<T> delivery, MonoSink<T> sink) {
+            this.host = host;
+            this.delivery = delivery;
+            this.sink = sink;
+        }
+
+        // Holds a slot until the delivery ends, however it ends
+        void run() {
+            if (cancelled) {
+                release(host);
+                return;
+            }
+            running = delivery
+                    .doFinally(signal -> release(host))
+                    .contextWrite(Context.of(sink.contextView()))
+                    .subscribe(sink::success, sink::error, () -> sink.success());
+        }
+
+        void cancel() {
+            cancelled = true;
+            Disposable subscription = running;
+            if (subscription != null) {
+                subscription.dispose();
+            } else {
+                lanes.computeIfPresent(host, (key, lane) -> {
+                    lane.waiting.remove(this);
+                    return lane.idle() ? null : lane;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.bscode.springweb.service;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.JobState;
+import org.bscode.springweb.model.RequestResult;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Background retries for callbacks that failed with a 5xx, timeout or I/O error.
+// Waiting deliveries sit on a hashed timing wheel, so scheduling one costs the
+// same however many are pending, and attempts back off exponentially with
+// jitter. Pending deliveries are journaled and picked up again after a
+// restart, and deliveries that run out of attempts are appended to a
+// dead-letter file, both in the configured directory. It must be an absolute
+// path so the journal does not move with the working directory.
+@Slf4j
+class CallbackRedelivery {
+    private final SpringWebProperties.Redelivery props;
+    private final CallbackClient client;
+    private final JobStore jobs;
+    private final PipelineMetrics metrics;
+    private final HashedWheelTimer timer;
+    private final RedeliveryJournal journal;
+    private final Map<String, CallbackDelivery> pending = new ConcurrentHashMap<>();
+
+    public CallbackRedelivery(SpringWebProperties.Redelivery props, CallbackClient client, JobStore jobs,
+                              PipelineMetrics metrics) {
+        this.props = props;
+        this.client = client;
+        this.jobs = jobs;
+        this.metrics = metrics;
+        timer = new HashedWheelTimer(new DefaultThreadFactory("callback-redelivery", true),
+                props.getTick().toNanos(), TimeUnit.NANOSECONDS, props.getWheelSize());
+        journal = new RedeliveryJournal(journalDir(props.getDir()), props.getCompactAfter());
+        for (CallbackDelivery delivery : journal.replay()) {
+            pending.put(delivery.getId(), delivery);
+            jobs.advance(jobId(delivery), JobState.REDELIVERY, delivery.getResult());
+            jobs.redelivering(jobId(delivery), delivery.getCallback());
+            arm(delivery);
+        }
+        if (!pending.isEmpty()) {
+            log.info("Resuming {} callback deliveries from the journal", pending.size());
+        }
+    }
+
+    public int pending() {
+        return pending.size();
+    }
+
+    // Whether a failed first attempt can be handed over here: only a 5xx,
+    // timeout or I/O error, which a later attempt may get past. Expired
+    // requests, refusals, bad targets and anything past maxPending fail their
+    // job as before.
+    public boolean accepts(Throwable error) {
+        return retryable(error) && pending.size() < props.getMaxPending();
+    }
+
+    // Takes over a callback whose first attempt failed. Completes empty: the
+    // job stays in REDELIVERY until a later attempt gets through or the
+    // attempts run out.
+    public Mono<String> schedule(String callback, RequestResult result, Long deadline, Throwable error) {
+        return Mono.fromRunnable(() -> {
+            CallbackDelivery delivery = new CallbackDelivery(UUID.randomUUID().toString(), callback, result, 1,
+                    0, deadline);
+            metrics.redelivery("scheduled");
+            retryLater(delivery, error);
+        });
+    }
+
+    // Pending deliveries stay in the journal for the next start
+    public void dispose() {
+        timer.stop();
+        journal.close();
+    }
+
+    private void retryLater(CallbackDelivery delivery, Throwable error) {
+        if (delivery.getAttempts() >= props.getMaxAttempts()) {
+            deadLetter(delivery, error);
+            return;
+        }
+        long delay = backoff(delivery.getAttempts());
+        CallbackDelivery next = delivery.withDue(System.currentTimeMillis() + delay);
+        log.warn("Callback to {} failed after {} attempt(s), retrying in {}ms: {}", next.getCallback(),
+                next.getAttempts(), delay, cause(error).toString());
+        pending.put(next.getId(), next);
+        journal.scheduled(next);
+        jobs.redelivering(jobId(next), next.getCallback());
+        arm(next);
+    }
+
+    private void arm(CallbackDelivery delivery) {
+        long delay = Math.max(0, delivery.getDue() - System.currentTimeMillis());
+        timer.newTimeout(timeout -> attempt(delivery), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the wheel thread, which only subscribes; the call itself
+    // completes on an event loop
+    private void attempt(CallbackDelivery delivery) {
+        if (Deadlines.expired(delivery.getDeadline())) {
+            expire(delivery, new DeadlineExceededException("Deadline passed before the callback was redelivered"));
+            return;
+        }
+        CallbackDelivery attempted = delivery.withAttempts(delivery.getAttempts() + 1);
+        client.callCallback(delivery.getCallback(), delivery.getResult())
+                .defaultIfEmpty("")
+                .contextWrite(Deadlines.context(delivery.getDeadline()))
+                .subscribe(
+                        response -> {
+                            log.info("Callback to {} delivered on attempt {}", attempted.getCallback(),
+                                    attempted.getAttempts());
+                            finish(attempted);
+                            metrics.redelivery("delivered");
+                            jobs.delivered(jobId(attempted), attempted.getCallback(), response);
+                        },
+                        e -> {
+                            if (cause(e) instanceof DeadlineExceededException) {
+                                expire(attempted, e);
+                            } else if (!retryable(e)) {
+                                giveUp(attempted, e);
+                            } else {
+                                retryLater(attempted, e);
+                            }
+                        });
+    }
+
+    private void expire(CallbackDelivery delivery, Throwable error) {
+        log.debug("Dropping callback to {}: {}", delivery.getCallback(), error.getMessage());
+        finish(delivery);
+        metrics.redelivery("expired");
+        jobs.deliveryFailed(jobId(delivery), delivery.getCallback(), error);
+    }
+
+    private void giveUp(CallbackDelivery delivery, Throwable error) {
+        log.error("Not retrying callback to {} after attempt {}: {}", delivery.getCallback(),
+                delivery.getAttempts(), cause(error).toString());
+        finish(delivery);
+        metrics.redelivery("failed");
+        jobs.deliveryFailed(jobId(delivery), delivery.getCallback(), error);
+    }
+
+    private void deadLetter(CallbackDelivery delivery, Throwable error) {
+        log.error("Giving up on callback to {} after {} attempts: {}", delivery.getCallback(),
+                delivery.getAttempts(), cause(error).toString());
+        journal.deadLetter(delivery, cause(error));
+        finish(delivery);
+        metrics.redelivery("dead_lettered");
+        jobs.deliveryFailed(jobId(delivery), delivery.getCallback(), error);
+    }
+
+    private void finish(CallbackDelivery delivery) {
+        pending.remove(delivery.getId());
+        journal.finished(delivery.getId(), pending::values);
+    }
+
+    private static Path journalDir(String dir) {
+        if (dir == null || dir.isBlank()) {
+            throw new IllegalStateException("spring-web.redelivery.dir must be set when redelivery is enabled");
+        }
+        Path path = Path.of(dir);
+        if (!path.isAbsolute()) {
+            throw new IllegalStateException("spring-web.redelivery.dir must be an absolute path, not " + dir);
+        }
+        return path;
+    }
+
+    // initialBackoff * 2^(attempts-1) capped at maxBackoff, less a random share of up to jitter
+    long backoff(int attempts) {
+        long initial = props.getInitialBackoff().toMillis();
+        long max = props.getMaxBackoff().toMillis();
+        long base = Math.min(max, initial << Math.min(attempts - 1, 30));
+        return base - (long) (base * props.getJitter() * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private static String jobId(CallbackDelivery delivery) {
+        return delivery.getResult() != null ? delivery.getResult().getJobId() : null;
+    }
+
+    // 5xx answers, and failures to connect, send or hear back in time; a
+    // DeadlineExceededException is a timeout too but the caller has given up
+    static boolean retryable(Throwable error) {
+        Throwable e = cause(error);
+        if (e instanceof WebClientResponseException) {
+            return ((WebClientResponseException) e).getStatusCode().is5xxServerError();
+        }
+        return e instanceof WebClientRequestException
+                || e instanceof IOException
+                || e instanceof TimeoutException
+                || e instanceof io.netty.handler.timeout.TimeoutException;
+    }
+
+    private static Throwable cause(Throwable e) {
+        return Exceptions.isRetryExhausted(e) && e.getCause() != null ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,7 @@
+package org.bscode.springweb.service;
+
+public class DeadlineExceededException extends RuntimeException {
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
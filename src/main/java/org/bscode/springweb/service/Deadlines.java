@@ -0,0 +1,57 @@
+package org.bscode.springweb.service;
+
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+// Request deadlines ride in the Reactor context of a call, so every stage of
+// a pipeline can see them without passing them through each client method.
+public final class Deadlines {
+    public static final String HEADER = "X-Request-Deadline";
+    private static final String KEY = Deadlines.class.getName();
+
+    private Deadlines() {
+    }
+
+    public static boolean expired(Long deadline) {
+        return deadline != null && System.currentTimeMillis() >= deadline;
+    }
+
+    static Function<Context, Context> context(Long deadline) {
+        return ctx -> deadline == null ? ctx : ctx.put(KEY, deadline);
+    }
+
+    // Fails fast without subscribing to the call once the deadline has passed,
+    // and cancels it if the deadline passes while it runs
+    static <T> Mono<T> within(Mono<T> call) {
+        return Mono.deferContextual(ctx -> {
+            Long deadline = ctx.getOrDefault(KEY, null);
+            if (deadline == null) {
+                return call;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return Mono.error(new DeadlineExceededException("Deadline passed before the call"));
+            }
+            return call.timeout(Duration.ofMillis(remaining),
+                    Mono.error(() -> new DeadlineExceededException("Deadline passed during the call")));
+        });
+    }
+
+    // Passes the deadline on to internal hops as an X-Request-Deadline header
+    static ExchangeFilterFunction propagate() {
+        return (request, next) -> Mono.deferContextual(ctx -> {
+            Long deadline = ctx.getOrDefault(KEY, null);
+            if (deadline == null) {
+                return next.exchange(request);
+            }
+            return next.exchange(ClientRequest.from(request)
+                    .header(HEADER, Long.toString(deadline))
+                    .build());
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import reactor.core.publisher.Mono;
+
+// Wraps calls to one destination with its circuit breaker and adaptive
+// concurrency limit. Calls that would exceed either fail immediately with
+// DownstreamRejectedException instead of queueing.
+class DownstreamGuard {
+    private final String destination;
+    private final AimdLimiter limiter;
+    private final CircuitBreaker breaker;
+
+    public DownstreamGuard(String destination, SpringWebProperties.Resilience props) {
+        this.destination = destination;
+        this.limiter = new AimdLimiter(props);
+        this.breaker = new CircuitBreaker(props);
+    }
+
+    public <T> Mono<T> protect(Mono<T> call) {
+        return Mono.defer(() -> {
+            if (!breaker.tryAcquire()) {
+                return Mono.error(new DownstreamRejectedException("Circuit open for " + destination));
+            }
+            if (!limiter.tryAcquire()) {
+                breaker.onCancel();
+                return Mono.error(new DownstreamRejectedException("Concurrency limit reached for " + destination));
+            }
+            long start = System.nanoTime();
+            return call
+                    .doOnSuccess(v -> {
+                        limiter.onSuccess(System.nanoTime() - start);
+                        breaker.onSuccess();
+                    })
+                    .doOnError(e -> {
+                        limiter.onFailure();
+                        breaker.onFailure();
+                    })
+                    .doOnCancel(breaker::onCancel)
+                    .doFinally(signal -> limiter.release());
+        });
+    }
+
+    public AimdLimiter limiter() {
+        return limiter;
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+}
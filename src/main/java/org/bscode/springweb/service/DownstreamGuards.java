@@ -0,0 +1,107 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.RetryBackoffSpec;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// One DownstreamGuard per destination host:port, plus the retry budget that
+// all outbound clients share. Callback hosts are chosen by clients, so the
+// guards are capped: a new destination past the cap first drops guards with
+// nothing in flight and a closed breaker, which only lose their learned
+// limit, and if none can go it shares the "other" guard.
+class DownstreamGuards {
+    private final SpringWebProperties.Resilience props;
+    private final ConcurrentHashMap<String, DownstreamGuard> guards = new ConcurrentHashMap<>();
+    private final RetryBudget retryBudget;
+    private final DownstreamGuard overflow;
+
+    public DownstreamGuards(SpringWebProperties.Resilience props) {
+        this.props = props;
+        this.retryBudget = new RetryBudget(props);
+        this.overflow = new DownstreamGuard("other", props);
+    }
+
+    public <T> Mono<T> protect(String url, Mono<T> call) {
+        return budgeted(guarded(url, call));
+    }
+
+    // Each attempt passes through the guard, but only the first one counts as
+    // a request for the retry budget and every retry has to be paid for.
+    public <T> Mono<T> protect(String url, Mono<T> call, RetryBackoffSpec retry) {
+        return budgeted(guarded(url, call), retry);
+    }
+
+    // The endpoint is picked per attempt, so a retry can land on another one
+    public <T> Mono<T> protect(EndpointBalancer endpoints, Function<String, Mono<T>> call) {
+        return budgeted(endpoints.call(url -> guarded(url, call.apply(url))));
+    }
+
+    public <T> Mono<T> protect(EndpointBalancer endpoints, Function<String, Mono<T>> call,
+                               RetryBackoffSpec retry) {
+        return budgeted(endpoints.call(url -> guarded(url, call.apply(url))), retry);
+    }
+
+    private <T> Mono<T> guarded(String url, Mono<T> call) {
+        return props.isEnabled() ? guard(url).protect(call) : call;
+    }
+
+    private <T> Mono<T> budgeted(Mono<T> call) {
+        if (!props.isEnabled()) {
+            return call;
+        }
+        return Mono.defer(() -> {
+            retryBudget.onRequest();
+            return call;
+        });
+    }
+
+    private <T> Mono<T> budgeted(Mono<T> call, RetryBackoffSpec retry) {
+        if (!props.isEnabled()) {
+            return call.retryWhen(retry);
+        }
+        Mono<T> attempts = call.retryWhen(retry.filter(this::tryRetry));
+        return Mono.defer(() -> {
+            retryBudget.onRequest();
+            return attempts;
+        });
+    }
+
+    private boolean tryRetry(Throwable error) {
+        return !(error instanceof DownstreamRejectedException) && retryBudget.tryRetry();
+    }
+
+    DownstreamGuard guard(String url) {
+        String destination = destination(url);
+        DownstreamGuard guard = guards.get(destination);
+        if (guard != null) {
+            return guard;
+        }
+        if (guards.size() >= props.getMaxDestinations()) {
+            evictIdle();
+            if (guards.size() >= props.getMaxDestinations()) {
+                return overflow;
+            }
+        }
+        return guards.computeIfAbsent(destination, d -> new DownstreamGuard(d, props));
+    }
+
+    int size() {
+        return guards.size();
+    }
+
+    private void evictIdle() {
+        guards.entrySet().removeIf(e -> e.getValue().limiter().inFlight() == 0
+                && e.getValue().breaker().state() == CircuitBreaker.State.CLOSED);
+    }
+
+    // The default port is filled in, so http://h and http://h:80 share a guard
+    static String destination(String url) {
+        URI uri = URI.create(url);
+        int port = uri.getPort() != -1 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return uri.getHost() + ":" + port;
+    }
+}
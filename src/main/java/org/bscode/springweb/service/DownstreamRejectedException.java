@@ -0,0 +1,7 @@
+package org.bscode.springweb.service;
+
+public class DownstreamRejectedException extends RuntimeException {
+    public DownstreamRejectedException(String message) {
+        super(message);
+    }
+}
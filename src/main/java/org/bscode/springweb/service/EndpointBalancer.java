@@ -0,0 +1,204 @@
+package org.bscode.springweb.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// Client-side balancing over the endpoints of one service. Each call goes to
+// the less loaded of two randomly picked healthy endpoints, by outstanding
+// requests. An endpoint that fails consecutiveFailures times in a row with a
+// 5xx or an I/O error is ejected until a health probe succeeds, or for
+// ejectionTime when probing is off. At most maxEjectedPercent of the
+// endpoints are ejected at once, and if none are healthy all of them are
+// used.
+@Slf4j
+class EndpointBalancer {
+    private final List<Endpoint> endpoints;
+    private final int consecutiveFailures;
+    private final long ejectionNanos;
+    private final int maxEjected;
+    private final boolean probing;
+    private final AtomicInteger ejected = new AtomicInteger();
+    private final Disposable probes;
+
+    public EndpointBalancer(String urls, SpringWebProperties.Balancing props, Function<String, Mono<?>> probe) {
+        List<Endpoint> list = new ArrayList<>();
+        for (String url : urls(urls)) {
+            list.add(new Endpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.consecutiveFailures = props.getConsecutiveFailures();
+        this.ejectionNanos = props.getEjectionTime().toNanos();
+        this.maxEjected = endpoints.size() * props.getMaxEjectedPercent() / 100;
+        Duration interval = props.getProbeInterval();
+        this.probing = interval != null && !interval.isZero() && maxEjected > 0;
+        this.probes = probing
+                ? Flux.interval(interval)
+                        .onBackpressureDrop()
+                        .concatMap(tick -> probeEjected(probe, props.getProbeTimeout()))
+                        .subscribe()
+                : null;
+    }
+
+    static List<String> urls(String urls) {
+        if (urls == null) {
+            return List.of();
+        }
+        return Arrays.stream(urls.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    public List<Endpoint> endpoints() {
+        return endpoints;
+    }
+
+    public <T> Mono<T> call(Function<String, Mono<T>> call) {
+        return Mono.defer(() -> {
+            Endpoint endpoint = choose();
+            endpoint.outstanding.incrementAndGet();
+            return call.apply(endpoint.url)
+                    .doOnSuccess(value -> endpoint.failures.set(0))
+                    .doOnError(e -> {
+                        if (countsAsFailure(e)) {
+                            onFailure(endpoint);
+                        }
+                    })
+                    .doFinally(signal -> endpoint.outstanding.decrementAndGet());
+        });
+    }
+
+    public void dispose() {
+        if (probes != null) {
+            probes.dispose();
+        }
+    }
+
+    Endpoint choose() {
+        int size = endpoints.size();
+        if (size == 0) {
+            throw new IllegalStateException("No endpoints configured");
+        }
+        if (size == 1) {
+            return endpoints.get(0);
+        }
+        long now = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Endpoint first = endpoints.get(random.nextInt(size));
+        Endpoint second = endpoints.get(random.nextInt(size - 1));
+        if (second == first) {
+            second = endpoints.get(size - 1);
+        }
+        if (first.available(now) && second.available(now)) {
+            return first.outstanding.get() <= second.outstanding.get() ? first : second;
+        }
+        // Some endpoints are ejected: fall back to the least loaded available
+        // one, or to the least loaded of all when none is available
+        Endpoint best = null;
+        Endpoint leastLoaded = null;
+        for (Endpoint endpoint : endpoints) {
+            if (leastLoaded == null || endpoint.outstanding.get() < leastLoaded.outstanding.get()) {
+                leastLoaded = endpoint;
+            }
+            if (endpoint.available(now) && (best == null || endpoint.outstanding.get() < best.outstanding.get())) {
+                best = endpoint;
+            }
+        }
+        return best != null ? best : leastLoaded;
+    }
+
+    private static boolean countsAsFailure(Throwable e) {
+        if (e instanceof WebClientResponseException) {
+            return ((WebClientResponseException) e).getStatusCode().is5xxServerError();
+        }
+        return !(e instanceof DownstreamRejectedException);
+    }
+
+    private void onFailure(Endpoint endpoint) {
+        if (endpoint.failures.incrementAndGet() < consecutiveFailures || endpoint.ejectedAt != 0) {
+            return;
+        }
+        int current;
+        do {
+            current = ejected.get();
+            if (current >= maxEjected) {
+                return;
+            }
+        } while (!ejected.compareAndSet(current, current + 1));
+        synchronized (endpoint) {
+            if (endpoint.ejectedAt != 0) {
+                ejected.decrementAndGet();
+                return;
+            }
+            endpoint.ejectedAt = System.nanoTime();
+        }
+        log.warn("Ejected {} after {} consecutive failures", endpoint.url, endpoint.failures.get());
+    }
+
+    private void restore(Endpoint endpoint) {
+        synchronized (endpoint) {
+            if (endpoint.ejectedAt == 0) {
+                return;
+            }
+            endpoint.ejectedAt = 0;
+            endpoint.failures.set(0);
+        }
+        ejected.decrementAndGet();
+        log.info("Restored {}", endpoint.url);
+    }
+
+    private Mono<Void> probeEjected(Function<String, Mono<?>> probe, Duration timeout) {
+        return Flux.fromIterable(endpoints)
+                .filter(endpoint -> endpoint.ejectedAt != 0)
+                .flatMap(endpoint -> probe.apply(endpoint.url)
+                        .timeout(timeout)
+                        .doOnSuccess(ok -> restore(endpoint))
+                        .onErrorResume(e -> Mono.empty()))
+                .then();
+    }
+
+    final class Endpoint {
+        final String url;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile long ejectedAt;
+
+        Endpoint(String url) {
+            this.url = url;
+        }
+
+        int outstanding() {
+            return outstanding.get();
+        }
+
+        boolean ejected() {
+            return ejectedAt != 0;
+        }
+
+        boolean available(long now) {
+            long at = ejectedAt;
+            if (at == 0) {
+                return true;
+            }
+            if (!probing && now - at >= ejectionNanos) {
+                restore(this);
+                return true;
+            }
+            return false;
+        }
+    }
+}
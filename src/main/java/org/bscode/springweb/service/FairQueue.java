@@ -0,0 +1,92 @@
+package org.bscode.springweb.service;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+// Weighted fair queue over one queue per tenant. Every tenant with waiting
+// tasks carries a virtual finish tag that grows by 1/weight for each task it
+// gets served, and the tenant with the lowest tag goes next, so under
+// contention tenants get turns in proportion to their weights however many
+// tasks each has queued. A tenant that goes idle and comes back starts at
+// the current virtual time instead of catching up on turns it did not use.
+// Priority still comes first across tenants, and within a tenant tasks keep
+// the given order. A tenant is dropped as soon as its queue empties, so
+// memory follows what is actually queued.
+final class FairQueue<T> {
+    private final Comparator<T> order;
+    private final ToIntFunction<T> priority;
+    private final Map<String, Tenant<T>> tenants = new HashMap<>();
+    private final PriorityQueue<Tenant<T>> active;
+    private double virtualTime;
+    private long sequence;
+
+    public FairQueue(Comparator<T> order, ToIntFunction<T> priority) {
+        this.order = order;
+        this.priority = priority;
+        this.active = new PriorityQueue<>(Comparator
+                .comparingInt((Tenant<T> t) -> priority.applyAsInt(t.tasks.peek())).reversed()
+                .thenComparingDouble(t -> t.finish)
+                .thenComparingLong(t -> t.sequence));
+    }
+
+    public synchronized void offer(String tenant, int weight, T task) {
+        Tenant<T> queue = tenants.get(tenant);
+        if (queue == null) {
+            queue = new Tenant<>(tenant, order, 1.0 / Math.max(1, weight), sequence++);
+            queue.finish = virtualTime + queue.cost;
+            queue.tasks.offer(task);
+            tenants.put(tenant, queue);
+            active.offer(queue);
+            return;
+        }
+        T head = queue.tasks.peek();
+        queue.tasks.offer(task);
+        // The heap is keyed on the head's priority, so re-seat a tenant whose head changed
+        if (queue.tasks.peek() != head && priority.applyAsInt(task) != priority.applyAsInt(head)) {
+            active.remove(queue);
+            active.offer(queue);
+        }
+    }
+
+    public synchronized T poll() {
+        Tenant<T> next = active.poll();
+        if (next == null) {
+            return null;
+        }
+        virtualTime = next.finish;
+        T task = next.tasks.poll();
+        if (next.tasks.isEmpty()) {
+            tenants.remove(next.name);
+        } else {
+            next.finish += next.cost;
+            active.offer(next);
+        }
+        return task;
+    }
+
+    public synchronized boolean isEmpty() {
+        return active.isEmpty();
+    }
+
+    public synchronized int tenants() {
+        return tenants.size();
+    }
+
+    private static final class Tenant<T> {
+        final String name;
+        final PriorityQueue<T> tasks;
+        final double cost;
+        final long sequence;
+        double finish;
+
+        Tenant(String name, Comparator<T> order, double cost, long sequence) {
+            this.name = name;
+            this.tasks = new PriorityQueue<>(order);
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Decides how the bundled stub endpoints answer: how long they take, which
+// status they fail with, and whether the answer is dripped out or the
+// connection reset. Settings are checked and turned into a Behaviour up
+// front, and replacing one is a single volatile write, so requests in flight
+// finish under the settings they started with. Delays run on Reactor's
+// timer, not on a thread each, so a node can hold tens of thousands of
+// simulated requests open at once.
+@Component
+public class FaultSimulator {
+    public static final String WORKER = "worker";
+    public static final String ARCHIVE = "archive";
+    public static final String ECHO = "echo";
+
+    // What happens to the connection, decided per request
+    public enum Transport { NORMAL, SLOW_BODY, RESET }
+
+    private volatile Map<String, Behaviour> behaviours;
+
+    public FaultSimulator(SpringWebProperties props) {
+        SpringWebProperties.Simulation simulation = props.getSimulation();
+        Map<String, Behaviour> initial = new LinkedHashMap<>();
+        initial.put(WORKER, new Behaviour(simulation.getWorker()));
+        initial.put(ARCHIVE, new Behaviour(simulation.getArchive()));
+        initial.put(ECHO, new Behaviour(simulation.getEcho()));
+        this.behaviours = Map.copyOf(initial);
+    }
+
+    // The answer after the sampled latency, or a sampled error status in its place
+    public <T> Mono<T> answer(String stub, Mono<T> answer) {
+        Behaviour behaviour = behaviour(stub);
+        long latency = behaviour.latencyNanos();
+        int status = behaviour.status();
+        Mono<T> outcome = status == 0
+                ? answer
+                : Mono.error(new ResponseStatusException(status, "Simulated failure", null));
+        return latency > 0 ? Mono.delay(Duration.ofNanos(latency)).then(outcome) : outcome;
+    }
+
+    public Behaviour behaviour(String stub) {
+        Behaviour behaviour = behaviours.get(stub);
+        if (behaviour == null) {
+            throw new IllegalArgumentException("No stub named " + stub);
+        }
+        return behaviour;
+    }
+
+    public Map<String, SpringWebProperties.Stub> settings() {
+        Map<String, SpringWebProperties.Stub> settings = new LinkedHashMap<>();
+        for (String stub : new String[]{WORKER, ARCHIVE, ECHO}) {
+            settings.put(stub, behaviours.get(stub).settings);
+        }
+        return settings;
+    }
+
+    // Replaces a stub's settings; invalid ones are refused whole
+    public void configure(String stub, SpringWebProperties.Stub settings) {
+        behaviour(stub);
+        Behaviour behaviour = new Behaviour(settings);
+        synchronized (this) {
+            Map<String, Behaviour> updated = new LinkedHashMap<>(behaviours);
+            updated.put(stub, behaviour);
+            behaviours = Map.copyOf(updated);
+        }
+    }
+
+    public static final class Behaviour {
+        private final SpringWebProperties.Stub settings;
+        private final SpringWebProperties.LatencyDistribution distribution;
+        private final long fixed;
+        private final long min;
+        private final long max;
+        private final double mu;
+        private final double slowMu;
+        private final double sigma;
+        private final double slowRatio;
+        // Error statuses with their cumulative rates, so one draw picks at most one
+        private final int[] statuses;
+        private final double[] cumulative;
+        private final double resetRate;
+        private final double slowBodyRate;
+        private final int chunkBytes;
+        private final Duration chunkDelay;
+
+        Behaviour(SpringWebProperties.Stub settings) {
+            if (settings.getLatency() == null || settings.getErrors() == null) {
+                throw new IllegalArgumentException("latency and errors are required");
+            }
+            SpringWebProperties.Latency latency = settings.getLatency();
+            this.settings = settings;
+            this.distribution = latency.getDistribution();
+            this.fixed = nanos(latency.getFixed(), "fixed");
+            this.min = nanos(latency.getMin(), "min");
+            this.max = nanos(latency.getMax(), "max");
+            this.sigma = latency.getSigma();
+            this.slowRatio = latency.getSlowRatio();
+            this.mu = Math.log(Math.max(1, nanos(latency.getMedian(), "median")));
+            this.slowMu = Math.log(Math.max(1, nanos(latency.getSlowMedian(), "slowMedian")));
+            if (distribution == null) {
+                throw new IllegalArgumentException("distribution is required");
+            }
+            if (max < min) {
+                throw new IllegalArgumentException("max is below min");
+            }
+            if (sigma < 0) {
+                throw new IllegalArgumentException("sigma is negative");
+            }
+            rate(slowRatio, "slowRatio");
+
+            this.statuses = new int[settings.getErrors().size()];
+            this.cumulative = new double[statuses.length];
+            double total = 0;
+            int i = 0;
+            for (Map.Entry<Integer, Double> error : settings.getErrors().entrySet()) {
+                if (error.getKey() < 400 || error.getKey() > 599) {
+                    throw new IllegalArgumentException("Error status " + error.getKey() + " is not a 4xx or 5xx");
+                }
+                total += rate(error.getValue(), "Error rate for " + error.getKey());
+                statuses[i] = error.getKey();
+                cumulative[i++] = total;
+            }
+            this.resetRate = rate(settings.getResetRate(), "resetRate");
+            this.slowBodyRate = rate(settings.getSlowBodyRate(), "slowBodyRate");
+            rate(total, "Sum of the error rates");
+            rate(resetRate + slowBodyRate, "resetRate plus slowBodyRate");
+            if (settings.getSlowBodyChunkBytes() < 1) {
+                throw new IllegalArgumentException("slowBodyChunkBytes must be positive");
+            }
+            this.chunkBytes = settings.getSlowBodyChunkBytes();
+            this.chunkDelay = Duration.ofNanos(nanos(settings.getSlowBodyChunkDelay(), "slowBodyChunkDelay"));
+        }
+
+        public long latencyNanos() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (distribution) {
+                case UNIFORM:
+                    return max > min ? random.nextLong(min, max + 1) : min;
+                case LOG_NORMAL:
+                    return (long) Math.exp(mu + sigma * random.nextGaussian());
+                case BIMODAL:
+                    double m = random.nextDouble() < slowRatio ? slowMu : mu;
+                    return (long) Math.exp(m + sigma * random.nextGaussian());
+                default:
+                    return fixed;
+            }
+        }
+
+        // An error status to answer with, or 0 to answer normally
+        public int status() {
+            if (statuses.length == 0) {
+                return 0;
+            }
+            double roll = ThreadLocalRandom.current().nextDouble();
+            for (int i = 0; i < statuses.length; i++) {
+                if (roll < cumulative[i]) {
+                    return statuses[i];
+                }
+            }
+            return 0;
+        }
+
+        public Transport transport() {
+            if (resetRate == 0 && slowBodyRate == 0) {
+                return Transport.NORMAL;
+            }
+            double roll = ThreadLocalRandom.current().nextDouble();
+            return roll < resetRate ? Transport.RESET
+                    : roll < resetRate + slowBodyRate ? Transport.SLOW_BODY
+                    : Transport.NORMAL;
+        }
+
+        public int chunkBytes() {
+            return chunkBytes;
+        }
+
+        public Duration chunkDelay() {
+            return chunkDelay;
+        }
+
+        private static long nanos(Duration duration, String name) {
+            if (duration == null || duration.isNegative()) {
+                throw new IllegalArgumentException(name + " must be zero or more");
+            }
+            return duration.toNanos();
+        }
+
+        private static double rate(Double rate, String name) {
+            if (rate == null || !(rate >= 0 && rate <= 1)) {
+                throw new IllegalArgumentException(name + " must be between 0 and 1");
+            }
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Hedged requests: when the first attempt has not answered within the hedge
+// delay, a second one is sent and whichever answers first wins; the other is
+// cancelled. A failed attempt does not win, so the call only fails when both
+// do, or when the first fails and no hedge is sent, with the first one's error. The delay is either fixed or a percentile of a ring of recent
+// latencies, recomputed every few samples. Hedges draw on their own budget so
+// they stay a bounded share of traffic.
+class Hedger {
+    private final Duration fixedDelay;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long[] samples;
+    private final int warmSamples;
+    private final int refreshEvery;
+    private final AtomicLong recorded = new AtomicLong();
+    private final RetryBudget budget;
+    private final Runnable onHedge;
+    private volatile long delayNanos = -1;
+
+    public Hedger(SpringWebProperties.Hedging props, Runnable onHedge) {
+        this.fixedDelay = props.getDelay();
+        this.percentile = props.getPercentile();
+        this.minDelayNanos = props.getMinDelay().toNanos();
+        this.samples = new long[props.getSamples()];
+        this.warmSamples = Math.max(1, props.getSamples() / 10);
+        this.refreshEvery = Math.max(1, props.getSamples() / 8);
+        this.budget = new RetryBudget(props.getMaxRatio(), 0);
+        this.onHedge = onHedge;
+    }
+
+    public <T> Mono<T> hedge(Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            budget.onRequest();
+            Duration delay = delay();
+            if (delay == null) {
+                return timed(call);
+            }
+            AtomicReference<Throwable> primaryError = new AtomicReference<>();
+            AtomicReference<Throwable> hedgeError = new AtomicReference<>();
+            Mono<T> primary = timed(call).doOnError(primaryError::set);
+            Mono<T> hedged = Mono.delay(delay).then(Mono.defer(() -> {
+                if (!budget.tryRetry()) {
+                    return Mono.<T>empty();
+                }
+                onHedge.run();
+                return timed(call).doOnError(hedgeError::set);
+            }));
+            return Mono.firstWithValue(primary, hedged)
+                    .onErrorResume(NoSuchElementException.class, e -> {
+                        Throwable error = primaryError.get() != null ? primaryError.get() : hedgeError.get();
+                        return error != null ? Mono.error(error) : Mono.empty();
+                    });
+        });
+    }
+
+    // Null until enough latencies have been seen to pick a percentile
+    Duration delay() {
+        if (fixedDelay != null) {
+            return fixedDelay;
+        }
+        long nanos = delayNanos;
+        return nanos < 0 ? null : Duration.ofNanos(nanos);
+    }
+
+    void record(long latencyNanos) {
+        long n = recorded.getAndIncrement();
+        samples[(int) (n % samples.length)] = latencyNanos;
+        if (n + 1 >= warmSamples && (n + 1) % refreshEvery == 0) {
+            long[] window = Arrays.copyOf(samples, (int) Math.min(n + 1, samples.length));
+            Arrays.sort(window);
+            int index = (int) Math.min(window.length - 1, Math.ceil(percentile * window.length) - 1);
+            delayNanos = Math.max(minDelayNanos, window[Math.max(0, index)]);
+        }
+    }
+
+    private <T> Mono<T> timed(Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call.get().doOnSuccess(value -> record(System.nanoTime() - start));
+        });
+    }
+}
@@ -0,0 +1,199 @@
+package org.bscode.springweb.service;
+
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.Http2AllocationStrategy;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import javax.annotation.PreDestroy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Owns the one ConnectionProvider shared by ParamClient, ArchiveClient and
+// CallbackClient, and builds their HttpClients on top of it.
+@Slf4j
+@Component
+public class HttpClientFactory {
+    private final SpringWebProperties props;
+    private final ConnectionProvider provider;
+    private final ConnectionProvider http2Provider;
+
+    enum Transport { HTTP11, H2C, H2 }
+
+    public HttpClientFactory(SpringWebProperties props) {
+        this.props = props;
+        this.provider = buildProvider(props.getPool());
+        this.http2Provider = props.getHttp2().isEnabled() ? buildHttp2Provider(props) : null;
+    }
+
+    public ConnectionProvider connectionProvider() {
+        return provider;
+    }
+
+    Transport transportFor(String url) {
+        SpringWebProperties.Http2 http2 = props.getHttp2();
+        if (!http2.isEnabled()) {
+            return Transport.HTTP11;
+        }
+        URI uri = URI.create(url);
+        if (http2.getHttp11Hosts().contains(uri.getHost())) {
+            return Transport.HTTP11;
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? Transport.H2 : Transport.H2C;
+    }
+
+    HttpClient httpClient(SpringWebProperties.Client client, Transport transport) {
+        HttpClient httpClient;
+        switch (transport) {
+            case H2:
+                // ALPN falls back to HTTP/1.1 when the server does not offer h2
+                httpClient = HttpClient.create(http2Provider)
+                        .secure()
+                        .protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+                break;
+            case H2C:
+                httpClient = props.getHttp2().isPriorKnowledge()
+                        ? HttpClient.create(http2Provider).protocol(HttpProtocol.H2C)
+                        : HttpClient.create(http2Provider).protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+                break;
+            default:
+                httpClient = HttpClient.create(provider);
+        }
+        return httpClient
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) client.getConnectTimeout().toMillis())
+                .responseTimeout(client.getResponseTimeout())
+                .doOnConnected(conn ->
+                        conn.addHandlerLast(new ReadTimeoutHandler(client.getReadTimeout().toMillis(), TimeUnit.MILLISECONDS))
+                                .addHandlerLast(new WriteTimeoutHandler(client.getWriteTimeout().toMillis(), TimeUnit.MILLISECONDS)));
+    }
+
+    // Every WebClient shares the default ExchangeStrategies, so the JSON and
+    // Smile codecs and their ObjectMappers are built once per JVM
+    WebClient.Builder webClient(SpringWebProperties.Client client, Transport transport) {
+        return WebClient.builder()
+                .exchangeStrategies(ExchangeStrategies.withDefaults())
+                .clientConnector(new ReactorClientHttpConnector(httpClient(client, transport)));
+    }
+
+    WebClient.Builder webClient(SpringWebProperties.Client client, String url) {
+        return webClient(client, transportFor(url));
+    }
+
+    // Body type for worker and archive calls
+    MediaType wireType() {
+        return props.getWire().getFormat().mediaType();
+    }
+
+    // JSON stays acceptable so nodes that cannot answer in Smile still work
+    MediaType[] wireAccept() {
+        return props.getWire().getFormat() == SpringWebProperties.WireFormat.SMILE
+                ? new MediaType[]{SpringWebProperties.WireFormat.SMILE.mediaType(), MediaType.APPLICATION_JSON}
+                : new MediaType[]{MediaType.APPLICATION_JSON};
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void prewarmOnStartup() {
+        int connections = props.getPool().getPrewarmConnections();
+        if (connections <= 0) {
+            return;
+        }
+        // Each host is warmed with the timeouts of the client that calls it
+        Map<String, SpringWebProperties.Client> hosts = new LinkedHashMap<>();
+        for (String url : EndpointBalancer.urls(props.getParamBaseUrl())) {
+            hosts.putIfAbsent(url, props.getParamClient());
+        }
+        for (String url : EndpointBalancer.urls(props.getArchiveBaseUrl())) {
+            hosts.putIfAbsent(url, props.getArchiveClient());
+        }
+        Flux.fromIterable(hosts.entrySet())
+                .flatMap(host -> prewarm(host.getValue(), host.getKey(), connections))
+                .subscribe(null, e -> log.warn("Connection prewarm failed: {}", e.toString()));
+    }
+
+    // Opens up to `connections` pooled connections to baseUrl by issuing that
+    // many concurrent HEAD requests; the status of the responses is ignored.
+    public Mono<Void> prewarm(SpringWebProperties.Client settings, String baseUrl, int connections) {
+        HttpClient client = httpClient(settings, transportFor(baseUrl));
+        return client.warmup()
+                .thenMany(Flux.range(0, connections)
+                        .flatMap(i -> client.head()
+                                .uri(baseUrl)
+                                .response()
+                                .onErrorResume(e -> Mono.empty()), connections))
+                .doOnComplete(() -> log.info("Prewarmed {} connections to {}", connections, baseUrl))
+                .then();
+    }
+
+    @PreDestroy
+    public void dispose() {
+        provider.dispose();
+        if (http2Provider != null) {
+            http2Provider.dispose();
+        }
+    }
+
+    private static ConnectionProvider buildProvider(SpringWebProperties.Pool pool) {
+        ConnectionProvider.Builder builder = ConnectionProvider.builder(pool.getName())
+                .maxConnections(pool.getMaxConnections())
+                .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(pool.getPendingAcquireTimeout())
+                .maxIdleTime(pool.getMaxIdleTime())
+                .maxLifeTime(pool.getMaxLifeTime())
+                .evictInBackground(pool.getEvictInBackground())
+                .metrics(pool.isMetrics());
+        pool.getDestinations().forEach((destination, limits) ->
+                builder.forRemoteHost(address(destination), spec -> {
+                    if (limits.getMaxConnections() != null) {
+                        spec.maxConnections(limits.getMaxConnections());
+                    }
+                    if (limits.getPendingAcquireMaxCount() != null) {
+                        spec.pendingAcquireMaxCount(limits.getPendingAcquireMaxCount());
+                    }
+                    if (limits.getPendingAcquireTimeout() != null) {
+                        spec.pendingAcquireTimeout(limits.getPendingAcquireTimeout());
+                    }
+                }));
+        return builder.build();
+    }
+
+    private static ConnectionProvider buildHttp2Provider(SpringWebProperties props) {
+        SpringWebProperties.Pool pool = props.getPool();
+        SpringWebProperties.Http2 http2 = props.getHttp2();
+        return ConnectionProvider.builder(pool.getName() + "-h2")
+                .allocationStrategy(Http2AllocationStrategy.builder()
+                        .maxConnections(http2.getMaxConnections())
+                        .maxConcurrentStreams(http2.getMaxConcurrentStreams())
+                        .build())
+                .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(pool.getPendingAcquireTimeout())
+                .maxIdleTime(pool.getMaxIdleTime())
+                .maxLifeTime(pool.getMaxLifeTime())
+                .evictInBackground(pool.getEvictInBackground())
+                .metrics(pool.isMetrics())
+                .build();
+    }
+
+    // Accepts either host:port or a full URL as the destination key
+    private static InetSocketAddress address(String destination) {
+        URI uri = URI.create(destination.contains("://") ? destination : "http://" + destination);
+        int port = uri.getPort() != -1 ? uri.getPort() : "https".equals(uri.getScheme()) ? 443 : 80;
+        return InetSocketAddress.createUnresolved(uri.getHost(), port);
+    }
+}
@@ -0,0 +1,7 @@
+package org.bscode.springweb.service;
+
+public class InvalidCallbacksException extends RuntimeException {
+    public InvalidCallbacksException(String message) {
+        super(message);
+    }
+}
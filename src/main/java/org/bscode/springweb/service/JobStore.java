@@ -0,0 +1,250 @@
+package org.bscode.springweb.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.DeliveryOutcome;
+import org.bscode.springweb.model.DeliveryState;
+import org.bscode.springweb.model.JobState;
+import org.bscode.springweb.model.JobStatus;
+import org.bscode.springweb.model.RequestResult;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+// Status of callback jobs by id, plus a multicast feed of finished jobs.
+// Entries are evicted in creation order, once they are older than the ttl or
+// when the store grows past maxJobs, so eviction only ever looks at the head
+// of the list. Entries link to their neighbours, so removing one by id does
+// not walk the list either.
+@Slf4j
+@Component
+public class JobStore {
+    private final long ttlNanos;
+    private final int maxJobs;
+    private final int streamBuffer;
+    private final Map<String, Entry> jobs = new ConcurrentHashMap<>();
+    // Creation order, oldest first; guarded by itself
+    private final Entry order = new Entry(null, 0);
+    private int size;
+    private final Sinks.Many<JobStatus> completions = Sinks.many().multicast().directBestEffort();
+
+    public JobStore(SpringWebProperties props) {
+        this.ttlNanos = props.getJobs().getTtl().toNanos();
+        this.maxJobs = props.getJobs().getMaxJobs();
+        this.streamBuffer = props.getJobs().getStreamBuffer();
+        order.prev = order;
+        order.next = order;
+    }
+
+    public String create() {
+        String jobId = UUID.randomUUID().toString();
+        track(jobId);
+        return jobId;
+    }
+
+    public Optional<JobStatus> get(String jobId) {
+        Entry entry = jobs.get(jobId);
+        if (entry == null || entry.expired(System.nanoTime())) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.status);
+    }
+
+    public void remove(String jobId) {
+        Entry entry = jobs.remove(jobId);
+        if (entry != null) {
+            synchronized (order) {
+                unlink(entry);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (order) {
+            return size;
+        }
+    }
+
+    public void advance(String jobId, JobState state, RequestResult result) {
+        update(jobId, current -> new JobStatus(jobId, state, result != null ? result : current.getResult(),
+                null, null, current.getDeliveries(), Instant.now()));
+    }
+
+    public void fail(String jobId, Throwable error) {
+        update(jobId, current -> new JobStatus(jobId, JobState.FAILED, current.getResult(),
+                null, error.toString(), current.getDeliveries(), Instant.now()));
+    }
+
+    // Starts the callback stage with every target pending
+    public void deliveriesStarted(String jobId, List<String> targets, RequestResult result) {
+        Instant now = Instant.now();
+        List<DeliveryOutcome> deliveries = new ArrayList<>(targets.size());
+        for (String target : targets) {
+            deliveries.add(new DeliveryOutcome(target, DeliveryState.PENDING, null, null, now));
+        }
+        update(jobId, current -> new JobStatus(jobId, JobState.CALLBACK, result, null, null,
+                List.copyOf(deliveries), now));
+    }
+
+    public void delivered(String jobId, String target, String response) {
+        delivery(jobId, target, DeliveryState.DELIVERED, response, null);
+    }
+
+    public void redelivering(String jobId, String target) {
+        delivery(jobId, target, DeliveryState.REDELIVERY, null, null);
+    }
+
+    public void deliveryFailed(String jobId, String target, Throwable error) {
+        delivery(jobId, target, DeliveryState.FAILED, null, error.toString());
+    }
+
+    // Finished jobs from now on. Each subscriber gets its own buffer so a slow
+    // client loses its oldest events instead of holding up the others.
+    public Flux<JobStatus> completions() {
+        return completions.asFlux()
+                .onBackpressureBuffer(streamBuffer, dropped -> { }, BufferOverflowStrategy.DROP_OLDEST);
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (completions) {
+            completions.tryEmitComplete();
+        }
+    }
+
+    // Records one target's outcome. The job finishes once every target has a
+    // final outcome: COMPLETED if all were delivered, otherwise FAILED.
+    private void delivery(String jobId, String target, DeliveryState state, String response, String error) {
+        Instant now = Instant.now();
+        update(jobId, current -> {
+            List<DeliveryOutcome> deliveries = new ArrayList<>();
+            if (current.getDeliveries() != null) {
+                deliveries.addAll(current.getDeliveries());
+            }
+            DeliveryOutcome outcome = new DeliveryOutcome(target, state, response, error, now);
+            int index = indexOf(deliveries, target);
+            if (index < 0) {
+                // Redelivered after a restart, so this node never saw the callback stage start
+                deliveries.add(outcome);
+            } else {
+                deliveries.set(index, outcome);
+            }
+            JobState jobState = JobState.COMPLETED;
+            String firstError = null;
+            for (DeliveryOutcome delivery : deliveries) {
+                if (!delivery.getState().isFinal()) {
+                    jobState = delivery.getState() == DeliveryState.REDELIVERY || jobState == JobState.REDELIVERY
+                            ? JobState.REDELIVERY : JobState.CALLBACK;
+                } else if (delivery.getState() == DeliveryState.FAILED && firstError == null) {
+                    firstError = delivery.getError();
+                }
+            }
+            if (jobState == JobState.COMPLETED && firstError != null) {
+                jobState = JobState.FAILED;
+            }
+            return new JobStatus(jobId, jobState, current.getResult(), deliveries.get(0).getResponse(),
+                    jobState == JobState.FAILED ? firstError : null, List.copyOf(deliveries), now);
+        });
+    }
+
+    private static int indexOf(List<DeliveryOutcome> deliveries, String target) {
+        for (int i = 0; i < deliveries.size(); i++) {
+            if (deliveries.get(i).getTarget().equals(target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void update(String jobId, UnaryOperator<JobStatus> change) {
+        if (jobId == null) {
+            return;
+        }
+        Entry entry = jobs.get(jobId);
+        if (entry == null) {
+            // Published by another node, or already evicted here
+            entry = track(jobId);
+        }
+        JobStatus previous;
+        JobStatus status;
+        synchronized (entry) {
+            previous = entry.status;
+            status = change.apply(previous);
+            entry.status = status;
+        }
+        // A job is announced once when it finishes, not again for late updates
+        if (status.getState().isTerminal() && !previous.getState().isTerminal()) {
+            synchronized (completions) {
+                completions.tryEmitNext(status);
+            }
+        }
+    }
+
+    private Entry track(String jobId) {
+        Entry entry = new Entry(jobId, System.nanoTime() + ttlNanos);
+        Entry existing = jobs.putIfAbsent(jobId, entry);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (order) {
+            entry.prev = order.prev;
+            entry.next = order;
+            order.prev.next = entry;
+            order.prev = entry;
+            size++;
+            evict();
+        }
+        return entry;
+    }
+
+    // Called holding the order lock
+    private void evict() {
+        long now = System.nanoTime();
+        Entry head;
+        while ((head = order.next) != order && (size > maxJobs || head.expired(now))) {
+            unlink(head);
+            jobs.remove(head.jobId, head);
+        }
+    }
+
+    // Called holding the order lock; an entry already unlinked is left alone
+    private void unlink(Entry entry) {
+        if (entry.next == null) {
+            return;
+        }
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        size--;
+    }
+
+    private static final class Entry {
+        final String jobId;
+        final long expiresAt;
+        volatile JobStatus status;
+        Entry prev;
+        Entry next;
+
+        Entry(String jobId, long expiresAt) {
+            this.jobId = jobId;
+            this.expiresAt = expiresAt;
+            this.status = new JobStatus(jobId, JobState.QUEUED, null, null, null, null, Instant.now());
+        }
+
+        boolean expired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+}
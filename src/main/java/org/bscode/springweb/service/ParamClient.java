@@ -1,57 +1,131 @@
 package org.bscode.springweb.service;
 
-import io.netty.channel.ChannelOption;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import io.netty.handler.timeout.WriteTimeoutHandler;
 import lombok.extern.slf4j.Slf4j;
 import org.bscode.springweb.config.SpringWebProperties;
 import org.bscode.springweb.model.Request;
 import org.bscode.springweb.model.RequestResult;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
 
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
-import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
 
 @Slf4j
 class ParamClient {
+    private static final byte[] ERROR_BODY = "{\"status\":\"ERROR\"}".getBytes(StandardCharsets.UTF_8);
     private final SpringWebProperties props;
-    private final WebClient client;
-    public ParamClient(SpringWebProperties props) {
+    private final EndpointBalancer endpoints;
+    private final Map<String, WebClient> clients = new HashMap<>();
+    private final SingleFlight<String, RequestResult> singleFlight;
+    private final Hedger hedger;
+    private final DownstreamGuards guards;
+    private final PipelineMetrics metrics;
+    private final MediaType wireType;
+    private final MediaType[] wireAccept;
+    public ParamClient(SpringWebProperties props, HttpClientFactory factory, DownstreamGuards guards,
+                       PipelineMetrics metrics) {
         this.props = props;
-        HttpClient httpClient = HttpClient.create()
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 500)
-                .responseTimeout(Duration.ofSeconds(5000))
-                .doOnConnected(conn ->
-                        conn.addHandlerLast(new ReadTimeoutHandler(500, TimeUnit.MILLISECONDS))
-                                .addHandlerLast(new WriteTimeoutHandler(500, TimeUnit.MILLISECONDS)));
-        client = WebClient.builder()
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
-                .baseUrl(props.getParamBaseUrl() + "/worker")
-                .build();
+        this.guards = guards;
+        this.metrics = metrics;
+        wireType = factory.wireType();
+        wireAccept = factory.wireAccept();
+        endpoints = new EndpointBalancer(props.getParamBaseUrl(), props.getBalancing(), this::probe);
+        for (EndpointBalancer.Endpoint endpoint : endpoints.endpoints()) {
+            clients.put(endpoint.url, factory.webClient(props.getParamClient(), endpoint.url)
+                    .baseUrl(endpoint.url + "/worker")
+                    .filter(Deadlines.propagate())
+                    .filter(Traces.propagate(PipelineMetrics.Stage.WORKER))
+                    .build());
+        }
+        metrics.bindEndpoints(PipelineMetrics.Stage.WORKER, endpoints);
+        singleFlight = props.getSingleFlight().isEnabled()
+                ? new SingleFlight<>(props.getSingleFlight().getMaxKeys())
+                : null;
+        hedger = props.getHedging().isEnabled()
+                ? new Hedger(props.getHedging(), () -> metrics.hedge(PipelineMetrics.Stage.WORKER))
+                : null;
     }
     public Mono<RequestResult> callWorker(Request req) {
-        return client
+        if (singleFlight != null) {
+            // The shared call carries nothing that belongs to only one of its callers
+            Request shared = new Request(null, null, null, req.isIdempotent(), req.getDeadline(), 0);
+            return metrics.time(PipelineMetrics.Stage.WORKER,
+                    Deadlines.within(singleFlight.execute(RequestKeys.hash(req),
+                            () -> send(shared).contextWrite(Traces.detach()))));
+        }
+        return metrics.time(PipelineMetrics.Stage.WORKER, Deadlines.within(send(req)));
+    }
+    private Mono<RequestResult> send(Request req) {
+        if (hedger != null && req.isIdempotent()) {
+            return hedger.hedge(() -> post(req));
+        }
+        return post(req);
+    }
+    // Pass-through variant of callWorker: the caller's bytes go out as they
+    // came and a 200 body comes back in the buffers it arrived in. Each
+    // attempt sends its own retained slice, so a hedge can send the body again.
+    public Mono<DataBuffer> relayWorker(DataBuffer body, boolean idempotent) {
+        Supplier<Mono<DataBuffer>> relay = () -> relay(body);
+        Mono<DataBuffer> sent = hedger != null && idempotent ? hedger.hedge(relay) : relay.get();
+        return metrics.time(PipelineMetrics.Stage.WORKER, Deadlines.within(sent))
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+    public void dispose() {
+        endpoints.dispose();
+    }
+    private Mono<RequestResult> post(Request req) {
+        return guards.protect(endpoints, url -> clients.get(url)
                 .post()
                 .body(Mono.just(req), Request.class)
-                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .accept(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.CONTENT_TYPE, wireType.toString())
+                .accept(wireAccept)
                 .acceptCharset(StandardCharsets.UTF_8)
                 .exchangeToMono(response -> {
                     if (response.statusCode().equals(HttpStatus.OK)) {
                         return response.bodyToMono(RequestResult.class);
                     } else if (response.statusCode().is4xxClientError()) {
-                        log.error("Status code for callback: {}", response.statusCode());
+                        log.error("Status code for worker: {}", response.statusCode());
+                        metrics.clientError(PipelineMetrics.Stage.WORKER);
                         return Mono.just(new RequestResult("ERROR"));
                     } else {
                         return response.createException().flatMap(Mono::error);
                     }
-                });
+                }));
+    }
+    private Mono<DataBuffer> relay(DataBuffer body) {
+        int start = body.readPosition();
+        int length = body.readableByteCount();
+        return guards.protect(endpoints, url -> clients.get(url)
+                .post()
+                .body(BodyInserters.fromDataBuffers(Mono.fromSupplier(() -> body.retainedSlice(start, length))))
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .accept(MediaType.APPLICATION_JSON)
+                .acceptCharset(StandardCharsets.UTF_8)
+                .exchangeToMono(response -> {
+                    if (response.statusCode().equals(HttpStatus.OK)) {
+                        return response.bodyToMono(DataBuffer.class);
+                    } else if (response.statusCode().is4xxClientError()) {
+                        log.error("Status code for worker: {}", response.statusCode());
+                        metrics.clientError(PipelineMetrics.Stage.WORKER);
+                        return Mono.fromSupplier(() -> DefaultDataBufferFactory.sharedInstance.wrap(ERROR_BODY));
+                    } else {
+                        return response.createException().flatMap(Mono::error);
+                    }
+                }));
+    }
+    private Mono<?> probe(String url) {
+        return clients.get(url).get()
+                .uri(url + props.getBalancing().getProbePath())
+                .retrieve()
+                .toBodilessEntity();
     }
 }
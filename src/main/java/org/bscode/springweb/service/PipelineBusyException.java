@@ -0,0 +1,7 @@
+package org.bscode.springweb.service;
+
+public class PipelineBusyException extends RuntimeException {
+    public PipelineBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,178 @@
+package org.bscode.springweb.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+// Runs detached callback pipelines with a cap on how many are in flight and a
+// bounded queue in front of that cap. Queued pipelines start by priority, then
+// take turns across tenants by weight, then within a tenant go by earliest
+// deadline and arrival. Each stage runs behind its own bulkhead, an in-flight
+// limit with a queue, on its own scheduler, so a slow stage only ties up its
+// own turns and threads. A stage's limit and queue together must hold every
+// pipeline slot, so a pipeline is never refused by a stage once it runs.
+@Slf4j
+class PipelineExecutor {
+    private final int maxInFlight;
+    private final int queueCapacity;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final FairQueue<Task> queue = new FairQueue<>(Task.ORDER, t -> t.priority);
+    private final ToIntFunction<String> weights;
+    private final Scheduler workerScheduler;
+    private final Scheduler archiveScheduler;
+    private final Scheduler callbackScheduler;
+    private final StageBulkhead workerBulkhead;
+    private final StageBulkhead archiveBulkhead;
+    private final StageBulkhead callbackBulkhead;
+
+    public PipelineExecutor(SpringWebProperties.Pipeline props) {
+        this(props, tenant -> 1);
+    }
+
+    public PipelineExecutor(SpringWebProperties.Pipeline props, ToIntFunction<String> weights) {
+        this.weights = weights;
+        this.maxInFlight = props.getMaxInFlight();
+        this.queueCapacity = props.getQueueCapacity();
+        checkStage("worker", props.getWorkerConcurrency(), props.getWorkerQueue());
+        checkStage("archive", props.getArchiveConcurrency(), props.getArchiveQueue());
+        checkStage("callback", props.getCallbackConcurrency(), props.getCallbackQueue());
+        // A stage only hands its scheduler work while holding a turn, so its
+        // queue never needs to hold more than the stage's limit
+        workerScheduler = Schedulers.newBoundedElastic(props.getWorkerThreads(),
+                props.getWorkerConcurrency(), "pipeline-worker");
+        archiveScheduler = Schedulers.newBoundedElastic(props.getArchiveThreads(),
+                props.getArchiveConcurrency(), "pipeline-archive");
+        callbackScheduler = Schedulers.newBoundedElastic(props.getCallbackThreads(),
+                props.getCallbackConcurrency(), "pipeline-callback");
+        workerBulkhead = new StageBulkhead("worker", props.getWorkerConcurrency(), props.getWorkerQueue());
+        archiveBulkhead = new StageBulkhead("archive", props.getArchiveConcurrency(), props.getArchiveQueue());
+        callbackBulkhead = new StageBulkhead("callback", props.getCallbackConcurrency(), props.getCallbackQueue());
+    }
+
+    // The call on the stage's scheduler once the stage's bulkhead gives it a turn
+    public <T> Mono<T> worker(Mono<T> call) {
+        return workerBulkhead.run(call.subscribeOn(workerScheduler));
+    }
+
+    public <T> Mono<T> archive(Mono<T> call) {
+        return archiveBulkhead.run(call.subscribeOn(archiveScheduler));
+    }
+
+    public <T> Mono<T> callback(Mono<T> call) {
+        return callbackBulkhead.run(call.subscribeOn(callbackScheduler));
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    public boolean submit(Mono<?> pipeline) {
+        return submit(pipeline, 0, null);
+    }
+
+    public boolean submit(Mono<?> pipeline, int priority, Long deadline) {
+        return submit(pipeline, priority, deadline, Tenants.ANONYMOUS);
+    }
+
+    // Returns false when both the in-flight slots and the queue are full.
+    public boolean submit(Mono<?> pipeline, int priority, Long deadline, String tenant) {
+        if (queued.get() == 0 && tryAcquireSlot()) {
+            run(pipeline);
+            return true;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            return false;
+        }
+        queue.offer(tenant, weights.applyAsInt(tenant), new Task(pipeline, priority, deadline == null ? Long.MAX_VALUE : deadline,
+                sequence.getAndIncrement()));
+        drain();
+        return true;
+    }
+
+    public void dispose() {
+        workerScheduler.dispose();
+        archiveScheduler.dispose();
+        callbackScheduler.dispose();
+    }
+
+    private void checkStage(String stage, int concurrency, int queue) {
+        if (concurrency + queue < maxInFlight) {
+            throw new IllegalStateException("spring-web.pipeline." + stage + "-concurrency plus "
+                    + stage + "-queue must be at least max-in-flight (" + maxInFlight + ")");
+        }
+    }
+
+    private boolean tryAcquireSlot() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private void run(Mono<?> pipeline) {
+        pipeline
+                .doFinally(signal -> {
+                    inFlight.decrementAndGet();
+                    drain();
+                })
+                .subscribe(
+                        result -> { },
+                        e -> {
+                            if (e instanceof DeadlineExceededException) {
+                                log.debug("Pipeline expired: {}", e.getMessage());
+                            } else {
+                                log.error("Pipeline failed", e);
+                            }
+                        });
+    }
+
+    private void drain() {
+        while (!queue.isEmpty() && tryAcquireSlot()) {
+            Task next = queue.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            // An expired pipeline still runs so its job is marked failed, but
+            // its stages end before making any downstream call
+            run(next.pipeline);
+        }
+    }
+
+    private static final class Task {
+        static final Comparator<Task> ORDER = Comparator.comparingInt((Task t) -> t.priority).reversed()
+                .thenComparingLong(t -> t.deadline)
+                .thenComparingLong(t -> t.sequence);
+
+        final Mono<?> pipeline;
+        final int priority;
+        final long deadline;
+        final long sequence;
+
+        Task(Mono<?> pipeline, int priority, long deadline, long sequence) {
+            this.pipeline = pipeline;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.bscode.springweb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Micrometer meters for the request pipeline. Every meter is registered up
+// front so the hot path only touches pre-built timers, counters and
+// AtomicIntegers; a timed call adds one small StageTiming on top.
+class PipelineMetrics {
+    // Tenant and reason pairs with their own rejection counter; later tenants share "other"
+    private static final int MAX_TAGGED_TENANTS = 100;
+
+    enum Stage {
+        WORKER, ARCHIVE, CALLBACK;
+
+        final String tag = name().toLowerCase();
+    }
+
+    private final MeterRegistry registry;
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final Map<Stage, AtomicInteger> inFlight = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> retries = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> hedges = new EnumMap<>(Stage.class);
+    // Indexed by status series, 1xx to 5xx
+    private final Map<Stage, Counter[]> statusErrors = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> ioErrors = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> rejected = new EnumMap<>(Stage.class);
+    private final Map<Stage, Counter> expired = new EnumMap<>(Stage.class);
+    private final Map<String, Counter> redeliveries = new HashMap<>();
+    private final Map<String, Counter> deliveries = new HashMap<>();
+    private final Map<String, Counter> tenantRejections = new ConcurrentHashMap<>();
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, Timer.builder("springweb.stage.duration")
+                    .tag("stage", stage.tag)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(30))
+                    .register(registry));
+            AtomicInteger gauge = new AtomicInteger();
+            inFlight.put(stage, gauge);
+            Gauge.builder("springweb.stage.inflight", gauge, AtomicInteger::get)
+                    .tag("stage", stage.tag)
+                    .register(registry);
+            retries.put(stage, Counter.builder("springweb.stage.retries").tag("stage", stage.tag).register(registry));
+            hedges.put(stage, Counter.builder("springweb.stage.hedges").tag("stage", stage.tag).register(registry));
+            Counter[] bySeries = new Counter[6];
+            for (int series = 1; series <= 5; series++) {
+                bySeries[series] = errorCounter(stage, series + "xx");
+            }
+            statusErrors.put(stage, bySeries);
+            ioErrors.put(stage, errorCounter(stage, "io"));
+            rejected.put(stage, errorCounter(stage, "rejected"));
+            expired.put(stage, errorCounter(stage, "expired"));
+        }
+        for (String outcome : new String[]{"delivered", "handed_over", "failed"}) {
+            deliveries.put(outcome, Counter.builder("springweb.callback.deliveries")
+                    .tag("outcome", outcome)
+                    .register(registry));
+        }
+        for (String outcome : new String[]{"scheduled", "delivered", "expired", "failed", "dead_lettered"}) {
+            redeliveries.put(outcome, Counter.builder("springweb.callback.redeliveries")
+                    .tag("outcome", outcome)
+                    .register(registry));
+        }
+    }
+
+    void bindExecutor(PipelineExecutor executor) {
+        Gauge.builder("springweb.pipeline.inflight", executor, PipelineExecutor::inFlight).register(registry);
+        Gauge.builder("springweb.pipeline.queued", executor, PipelineExecutor::queued).register(registry);
+    }
+
+    void bindEndpoints(Stage stage, EndpointBalancer balancer) {
+        for (EndpointBalancer.Endpoint endpoint : balancer.endpoints()) {
+            Gauge.builder("springweb.endpoint.outstanding", endpoint, EndpointBalancer.Endpoint::outstanding)
+                    .tag("stage", stage.tag)
+                    .tag("endpoint", endpoint.url)
+                    .register(registry);
+            Gauge.builder("springweb.endpoint.ejected", endpoint, e -> e.ejected() ? 1 : 0)
+                    .tag("stage", stage.tag)
+                    .tag("endpoint", endpoint.url)
+                    .register(registry);
+        }
+    }
+
+    void bindJobs(JobStore jobs) {
+        Gauge.builder("springweb.jobs.tracked", jobs, JobStore::size).register(registry);
+    }
+
+    void bindCallbackLanes(CallbackLanes lanes) {
+        Gauge.builder("springweb.callback.lanes", lanes, CallbackLanes::lanes).register(registry);
+    }
+
+    void bindRedelivery(CallbackRedelivery redelivery) {
+        Gauge.builder("springweb.callback.redelivery.pending", redelivery, CallbackRedelivery::pending)
+                .register(registry);
+    }
+
+    // Also adds the stage to the request's trace and, while a recording wants
+    // it, to the flight recorder
+    <T> Mono<T> time(Stage stage, Mono<T> call) {
+        return Mono.deferContextual(ctx -> {
+            StageTiming<T> timing = new StageTiming<>(stage, Traces.current(ctx));
+            return call.doOnEach(timing).doOnCancel(timing);
+        });
+    }
+
+    void clientError(Stage stage) {
+        statusErrors.get(stage)[4].increment();
+    }
+
+    void retry(Stage stage) {
+        retries.get(stage).increment();
+    }
+
+    void hedge(Stage stage) {
+        hedges.get(stage).increment();
+    }
+
+    // One per callback target on the pipeline's own attempt
+    void delivery(String outcome) {
+        deliveries.get(outcome).increment();
+    }
+
+    void redelivery(String outcome) {
+        redeliveries.get(outcome).increment();
+    }
+
+    // reason is "rate" for the tenant's bucket or "queue" for a full pipeline queue
+    void tenantRejected(String tenant, String reason) {
+        String key = reason + ' ' + tenant;
+        Counter counter = tenantRejections.get(key);
+        if (counter == null) {
+            String tag = tenantRejections.size() < MAX_TAGGED_TENANTS ? tenant : "other";
+            counter = tenantRejections.computeIfAbsent(reason + ' ' + tag, k -> Counter.builder("springweb.tenant.rejected")
+                    .tag("tenant", tag)
+                    .tag("reason", reason)
+                    .register(registry));
+        }
+        counter.increment();
+    }
+
+    private void error(Stage stage, Throwable e) {
+        if (Exceptions.isRetryExhausted(e) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof DownstreamRejectedException) {
+            rejected.get(stage).increment();
+        } else if (e instanceof DeadlineExceededException) {
+            expired.get(stage).increment();
+        } else if (e instanceof WebClientResponseException && series(e) > 0) {
+            statusErrors.get(stage)[series(e)].increment();
+        } else {
+            ioErrors.get(stage).increment();
+        }
+    }
+
+    private static int series(Throwable e) {
+        int status = ((WebClientResponseException) e).getRawStatusCode();
+        return status >= 100 && status < 600 ? status / 100 : 0;
+    }
+
+    // One per timed call, holding its start and whether it has been recorded.
+    // Each outcome is recorded before it goes downstream, so a caller that
+    // has the result also sees it counted; doFinally would run only after.
+    private final class StageTiming<T> extends AtomicBoolean implements Consumer<Signal<T>>, Runnable {
+        private final Stage stage;
+        private final Trace trace;
+        private final TraceEvents.StageEvent event;
+        private final long start;
+
+        StageTiming(Stage stage, Trace trace) {
+            this.stage = stage;
+            this.trace = trace;
+            inFlight.get(stage).incrementAndGet();
+            start = System.nanoTime();
+            event = TraceEvents.stage();
+        }
+
+        @Override
+        public void accept(Signal<T> signal) {
+            if (signal.isOnError()) {
+                error(stage, signal.getThrowable());
+                finish(Trace.outcome(signal.getThrowable()));
+            } else if (signal.isOnNext() || signal.isOnComplete()) {
+                finish("ok");
+            }
+        }
+
+        @Override
+        public void run() {
+            finish("cancelled");
+        }
+
+        private void finish(String outcome) {
+            if (!compareAndSet(false, true)) {
+                return;
+            }
+            long end = System.nanoTime();
+            inFlight.get(stage).decrementAndGet();
+            timers.get(stage).record(end - start, TimeUnit.NANOSECONDS);
+            if (trace != null) {
+                trace.span(stage.tag, start, end, outcome);
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.traceId = trace != null ? trace.id : null;
+                    event.stage = stage.tag;
+                    event.outcome = outcome;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private Counter errorCounter(Stage stage, String status) {
+        return Counter.builder("springweb.stage.errors")
+                .tag("stage", stage.tag)
+                .tag("status", status)
+                .register(registry);
+    }
+}
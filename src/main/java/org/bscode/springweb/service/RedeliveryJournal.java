@@ -0,0 +1,182 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Append-only record of pending callback deliveries. A delivery is written as
+// "+<json>" whenever it is scheduled and as "-<id>" once it is delivered or
+// given up on, so replay keeps the last "+" line of every id without a "-".
+// All file writes happen on one thread, away from the event loops that finish
+// callback attempts, and once compactAfter deliveries have finished the
+// journal is rewritten with just the pending ones.
+@Slf4j
+class RedeliveryJournal {
+    static final String JOURNAL = "callback-journal.ndjson";
+    static final String DEAD_LETTERS = "callback-dead-letters.ndjson";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectReader READER = MAPPER.readerFor(CallbackDelivery.class);
+    private static final ObjectWriter WRITER = MAPPER.writerFor(CallbackDelivery.class);
+
+    private final Path journal;
+    private final Path deadLetters;
+    private final int compactAfter;
+    private final ExecutorService writer =
+            Executors.newSingleThreadExecutor(new DefaultThreadFactory("redelivery-journal", true));
+    private BufferedWriter out;
+    private int finished;
+
+    public RedeliveryJournal(Path dir, int compactAfter) {
+        this.journal = dir.resolve(JOURNAL);
+        this.deadLetters = dir.resolve(DEAD_LETTERS);
+        this.compactAfter = compactAfter;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Deliveries still pending from the previous run. Leaves a compacted
+    // journal behind that new lines are appended to.
+    public List<CallbackDelivery> replay() {
+        Map<String, CallbackDelivery> pending = new LinkedHashMap<>();
+        try {
+            if (Files.exists(journal)) {
+                for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                    if (line.startsWith("-")) {
+                        pending.remove(line.substring(1));
+                    } else if (line.startsWith("+")) {
+                        try {
+                            CallbackDelivery delivery = READER.readValue(line.substring(1));
+                            pending.put(delivery.getId(), delivery);
+                        } catch (IOException e) {
+                            // Most likely the last line, cut short by a crash
+                            log.warn("Skipping unreadable journal line: {}", e.getMessage());
+                        }
+                    }
+                }
+            }
+            rewrite(pending.values());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    public void scheduled(CallbackDelivery delivery) {
+        writer.execute(() -> append("+" + json(delivery)));
+    }
+
+    public void finished(String id, Supplier<Collection<CallbackDelivery>> pending) {
+        writer.execute(() -> {
+            append("-" + id);
+            if (++finished >= compactAfter) {
+                compact(pending.get());
+            }
+        });
+    }
+
+    public void deadLetter(CallbackDelivery delivery, Throwable error) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("delivery", delivery);
+        entry.put("error", error.toString());
+        entry.put("at", Instant.now().toString());
+        writer.execute(() -> {
+            try {
+                Files.writeString(deadLetters, MAPPER.writeValueAsString(entry) + "\n", StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                log.error("Could not write dead letter {}", delivery.getId(), e);
+            }
+        });
+    }
+
+    // Waits for queued writes, so everything scheduled so far is in the file
+    public void close() {
+        writer.execute(() -> {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Could not close redelivery journal", e);
+            }
+        });
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Redelivery journal writes still queued at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(String line) {
+        try {
+            out.write(line);
+            out.newLine();
+            // Into the OS page cache, so a crash of this process loses nothing
+            out.flush();
+        } catch (IOException e) {
+            log.error("Could not write redelivery journal", e);
+        }
+    }
+
+    private void compact(Collection<CallbackDelivery> pending) {
+        try {
+            out.close();
+            rewrite(pending);
+            finished = 0;
+        } catch (IOException e) {
+            log.error("Could not compact redelivery journal, appending to the old one", e);
+            try {
+                out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            } catch (IOException reopen) {
+                log.error("Could not reopen redelivery journal", reopen);
+            }
+        }
+    }
+
+    // Writes the pending deliveries to a new file and swaps it in, so a crash
+    // midway leaves the old journal in place
+    private void rewrite(Collection<CallbackDelivery> pending) throws IOException {
+        Path next = journal.resolveSibling(JOURNAL + ".tmp");
+        try (BufferedWriter tmp = Files.newBufferedWriter(next, StandardCharsets.UTF_8)) {
+            for (CallbackDelivery delivery : pending) {
+                tmp.write("+" + json(delivery));
+                tmp.newLine();
+            }
+        }
+        Files.move(next, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static String json(CallbackDelivery delivery) {
+        try {
+            return WRITER.writeValueAsString(delivery);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.bscode.springweb.model.Request;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+// Canonical hashes of the work in a request: properties and map entries are
+// sorted so equivalent payloads produce the same key regardless of field
+// order. Fields that only say where the result goes or how urgently it is
+// wanted are left out, since the service, not the worker, acts on them. The
+// deadline stays in: a shared call runs under one deadline, and a caller with
+// a short one must not time out callers that are willing to wait longer.
+final class RequestKeys {
+    private static final ObjectMapper CANONICAL = JsonMapper.builder()
+            .enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+            .addMixIn(Request.class, WorkOnly.class)
+            .build();
+
+    private RequestKeys() {
+    }
+
+    static String hash(Request body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(digest.digest(CANONICAL.writeValueAsBytes(body)));
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Could not hash request body", e);
+        }
+    }
+
+    @JsonIgnoreProperties({"callback", "callbacks", "jobId", "priority"})
+    private abstract static class WorkOnly {
+    }
+}
@@ -0,0 +1,74 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// The fields of a raw request body that steer a pass-through call, read with
+// the streaming parser without binding a Request. Anything the scan is not
+// sure about yields null, and the body then goes through the usual decoding,
+// which answers malformed input the same way it always has.
+@Value
+public class RequestScan {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    String callback;
+    Long deadline;
+    boolean idempotent;
+
+    // Leaves the buffer's read position where it was
+    public static RequestScan of(DataBuffer body) {
+        DataBuffer view = body.slice(body.readPosition(), body.readableByteCount());
+        try (InputStream in = view.asInputStream(); JsonParser parser = JSON.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String callback = null;
+            Long deadline = null;
+            boolean idempotent = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (name) {
+                    case "callback":
+                        if (value != JsonToken.VALUE_STRING) {
+                            return null;
+                        }
+                        callback = parser.getText();
+                        break;
+                    case "deadline":
+                        if (value != JsonToken.VALUE_NUMBER_INT) {
+                            return null;
+                        }
+                        deadline = parser.getLongValue();
+                        break;
+                    case "callbacks":
+                        // Fan-out requests go through the usual path
+                        return null;
+                    case "idempotent":
+                        if (!value.isBoolean()) {
+                            return null;
+                        }
+                        idempotent = parser.getBooleanValue();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                return null;
+            }
+            return new RequestScan(callback, deadline, idempotent);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
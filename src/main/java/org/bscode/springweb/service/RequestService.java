@@ -1,41 +1,303 @@
 package org.bscode.springweb.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.JobState;
 import org.bscode.springweb.model.Request;
 import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.model.SlowRequest;
+import org.bscode.springweb.queue.JobTransport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
 
 @Slf4j
 @Component
 public class RequestService {
+    private static final ObjectReader REQUEST_READER = new ObjectMapper().readerFor(Request.class);
+
     ParamClient paramClient;
     CallbackClient callbackClient;
     ArchiveClient archiveClient;
+    PipelineExecutor executor;
+    JobTransport transport;
+    JobStore jobs;
+    CallbackRedelivery redelivery;
+    TenantLimiter limiter;
+    PipelineMetrics metrics;
+    SlowRequests slowRequests;
+    boolean tracing;
+    int bulkConcurrency;
+    boolean passThrough;
+    boolean trustCaller;
+    int maxCallbacks;
 
     public RequestService(SpringWebProperties props) {
-        paramClient = new ParamClient(props);
-        callbackClient = new CallbackClient(props);
-        archiveClient = new ArchiveClient(props);
+        this(props, new HttpClientFactory(props), null, new SimpleMeterRegistry(), new JobStore(props));
+    }
+
+    public RequestService(SpringWebProperties props, JobTransport transport) {
+        this(props, new HttpClientFactory(props), transport, new SimpleMeterRegistry(), new JobStore(props));
+    }
+
+    @Autowired
+    public RequestService(SpringWebProperties props, HttpClientFactory clientFactory,
+                          @Nullable JobTransport transport, MeterRegistry registry, JobStore jobs) {
+        DownstreamGuards guards = new DownstreamGuards(props.getResilience());
+        metrics = new PipelineMetrics(registry);
+        limiter = new TenantLimiter(props.getTenants());
+        paramClient = new ParamClient(props, clientFactory, guards, metrics);
+        callbackClient = new CallbackClient(props, clientFactory, guards, metrics);
+        archiveClient = new ArchiveClient(props, clientFactory, guards, metrics);
+        executor = new PipelineExecutor(props.getPipeline(), limiter::weight);
+        metrics.bindExecutor(executor);
+        metrics.bindJobs(jobs);
+        if (props.getRedelivery().isEnabled()) {
+            redelivery = new CallbackRedelivery(props.getRedelivery(), callbackClient, jobs, metrics);
+            metrics.bindRedelivery(redelivery);
+        }
+        this.jobs = jobs;
+        slowRequests = new SlowRequests(props.getDiagnostics());
+        tracing = props.getDiagnostics().isTracing();
+        bulkConcurrency = props.getBulk().getMaxConcurrency();
+        // Single-flight keys and Smile bodies both need the bound Request
+        passThrough = props.getPassThrough().isEnabled() && !props.getSingleFlight().isEnabled()
+                && props.getWire().getFormat() == SpringWebProperties.WireFormat.JSON;
+        trustCaller = props.getTenants().isTrustCaller();
+        maxCallbacks = props.getCallbacks().getMaxCallbacks();
+        this.transport = transport;
+        if (transport != null) {
+            transport.start(this::runPipeline);
+        }
     }
 
     public Mono<RequestResult> scheduleWork(Request req) {
-        if (req.getCallback() == null) {
-            return paramClient.callWorker(req);
+        return scheduleWork(req, Tenants.resolve(null, req, null, trustCaller));
+    }
+
+    public Mono<RequestResult> scheduleWork(Request req, String tenant) {
+        if (req.targets().size() > maxCallbacks) {
+            return Mono.error(new InvalidCallbacksException("A request may name at most " + maxCallbacks
+                    + " callback targets"));
+        }
+        for (String target : req.targets()) {
+            if (!CallbackClient.isValidTarget(target)) {
+                return Mono.error(new InvalidCallbacksException("Callback target " + target
+                        + " is not an http or https URL"));
+            }
+        }
+        RuntimeException refused = admit(req.getDeadline(), tenant);
+        if (refused != null) {
+            return Mono.error(refused);
+        }
+        if (req.targets().isEmpty()) {
+            return traced(trace(null, "sync"), paramClient.callWorker(req))
+                    .contextWrite(Deadlines.context(req.getDeadline()));
+        } else if (transport != null) {
+            return publishWork(req);
         } else {
-            return callWorkerAndCallback(req);
+            return callWorkerAndCallback(req, tenant);
+        }
+    }
+
+    public Flux<RequestResult> scheduleBulk(Flux<String> lines) {
+        return scheduleBulk(lines, null);
+    }
+
+    // Whether synchronous requests may skip binding and go through relayWork
+    public boolean passThrough() {
+        return passThrough;
+    }
+
+    // Whether tenants are taken as callers state them rather than by remote address
+    public boolean trustCaller() {
+        return trustCaller;
+    }
+
+    // Synchronous work without decoding or re-encoding: the scanned fields
+    // steer the call, the body is forwarded as it came and the worker's
+    // answer is returned as it arrived. Releases the body when done.
+    public Mono<DataBuffer> relayWork(DataBuffer body, RequestScan scan, String tenant) {
+        RuntimeException refused = admit(scan.getDeadline(), tenant);
+        if (refused != null) {
+            DataBufferUtils.release(body);
+            return Mono.error(refused);
         }
+        return traced(trace(null, "sync"), paramClient.relayWorker(body, scan.isIdempotent()))
+                .doFinally(signal -> DataBufferUtils.release(body))
+                .contextWrite(Deadlines.context(scan.getDeadline()));
+    }
+
+    // One result per non-blank NDJSON line, in input order. At most
+    // bulkConcurrency requests run at once and a line is only read once a slot
+    // frees up, so a slow worker slows down reading the input. A line that
+    // fails gets a BUSY, THROTTLED, EXPIRED, INVALID or ERROR result instead of
+    // ending the stream. Without a tenant, each line is attributed on its own.
+    public Flux<RequestResult> scheduleBulk(Flux<String> lines, String tenant) {
+        return lines
+                .filter(line -> !line.isBlank())
+                .flatMapSequential(line -> Mono.fromCallable(() -> REQUEST_READER.<Request>readValue(line))
+                        .flatMap(req -> scheduleWork(req, tenant != null ? tenant : Tenants.resolve(null, req, null, trustCaller)))
+                        .onErrorResume(this::bulkFailure), bulkConcurrency, 1);
     }
 
-    private Mono<RequestResult> callWorkerAndCallback(Request req) {
-        paramClient.callWorker(req)
-                .onErrorReturn(new RequestResult("ERROR"))
-                .flatMap(result -> archiveClient.callArchive(result))
-                .flatMap(result -> callbackClient.callCallback(req.getCallback(), result))
-                .subscribeOn(Schedulers.single())
-                .subscribe(str -> log.info("Callback returned {}", str));
-        return Mono.just(new RequestResult("In process"));
+    // The slowest recent requests with their per-stage breakdown, slowest first
+    public List<SlowRequest> slowRequests() {
+        return slowRequests.snapshot();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (transport != null) {
+            transport.stop();
+        }
+        if (redelivery != null) {
+            redelivery.dispose();
+        }
+        archiveClient.dispose();
+        paramClient.dispose();
+        executor.dispose();
+    }
+
+    Mono<Void> runPipeline(Request req) {
+        String jobId = req.getJobId();
+        // The worker sees the request as the client sent it; the job id travels on the result
+        return traced(trace(jobId, "callback"), executor.worker(paramClient.callWorker(req.withJobId(null))
+                        .doOnSubscribe(s -> jobs.advance(jobId, JobState.WORKER, null)))
+                // A refused call never reached the worker, so the job fails (or the
+                // transport runs it again) rather than passing on a made-up result
+                .onErrorResume(e -> !(e instanceof DeadlineExceededException || e instanceof DownstreamRejectedException),
+                        e -> Mono.just(new RequestResult("ERROR")))
+                .map(result -> result.withJobId(jobId))
+                .doOnNext(result -> jobs.advance(jobId, JobState.ARCHIVE, result))
+                .flatMap(result -> executor.archive(archiveClient.callArchive(result)))
+                .doOnError(e -> jobs.fail(jobId, e))
+                .flatMapMany(result -> deliver(jobId, req.targets(), result, req.getDeadline()))
+                .then())
+                .contextWrite(Deadlines.context(req.getDeadline()));
+    }
+
+    // Every target gets the result at once; the per-host lanes in
+    // CallbackClient keep a slow target from holding up the others. Each
+    // outcome is recorded on the job as it comes in, and the job fails if any
+    // target failed. A failed target does not fail the pipeline: the
+    // transport would run the job again and deliver to the targets that
+    // already have the result a second time.
+    private Flux<String> deliver(String jobId, List<String> targets, RequestResult result, Long deadline) {
+        jobs.deliveriesStarted(jobId, targets, result);
+        return Flux.fromIterable(targets)
+                .flatMap(target -> executor.callback(callbackClient.callCallback(target, result))
+                        .defaultIfEmpty("")
+                        .doOnNext(response -> {
+                            log.info("Callback to {} returned {}", target, response);
+                            metrics.delivery("delivered");
+                            jobs.delivered(jobId, target, response);
+                        })
+                        .onErrorResume(e -> redelivery != null && redelivery.accepts(e), e -> {
+                            metrics.delivery("handed_over");
+                            return redelivery.schedule(target, result, deadline, e);
+                        })
+                        .onErrorResume(e -> {
+                            log.warn("Callback to {} failed: {}", target, e.toString());
+                            metrics.delivery("failed");
+                            jobs.deliveryFailed(jobId, target, e);
+                            return Mono.empty();
+                        }), Math.max(1, targets.size()), 1);
+    }
+
+    // A callback job is traced under its job id, so the trace id on the
+    // worker, archive and callback hops is the id the client got back
+    private Trace trace(String jobId, String kind) {
+        return tracing ? new Trace(jobId != null ? jobId : Traces.newId(), kind) : null;
+    }
+
+    // Callback work starts its trace when it is accepted, so time spent
+    // waiting for a pipeline slot shows up as a "queued" span
+    private <T> Mono<T> traced(Trace trace, Mono<T> work) {
+        if (trace == null) {
+            return work;
+        }
+        TraceEvents.RequestEvent event = TraceEvents.request();
+        return work
+                .doOnSubscribe(s -> {
+                    if (trace.kind.equals("callback")) {
+                        trace.span("queued", trace.startNanos, System.nanoTime(), "ok");
+                    }
+                })
+                .doOnSuccess(result -> finish(trace, event, "ok"))
+                .doOnError(e -> finish(trace, event, Trace.outcome(e)))
+                .doOnCancel(() -> finish(trace, event, "cancelled"))
+                .contextWrite(Traces.context(trace));
+    }
+
+    private void finish(Trace trace, TraceEvents.RequestEvent event, String outcome) {
+        slowRequests.offer(trace, trace.finish(outcome));
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.traceId = trace.id;
+                event.kind = trace.kind;
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
+    }
+
+    private RuntimeException admit(Long deadline, String tenant) {
+        if (Deadlines.expired(deadline)) {
+            return new DeadlineExceededException("Request deadline has already passed");
+        }
+        long wait = limiter.tryAcquire(tenant);
+        if (wait > 0) {
+            metrics.tenantRejected(tenant, "rate");
+            return new TenantThrottledException(tenant, wait);
+        }
+        return null;
+    }
+
+    private Mono<RequestResult> bulkFailure(Throwable e) {
+        if (e instanceof PipelineBusyException || e instanceof DownstreamRejectedException) {
+            return Mono.just(new RequestResult("BUSY"));
+        }
+        if (e instanceof TenantThrottledException) {
+            return Mono.just(new RequestResult("THROTTLED"));
+        }
+        if (e instanceof DeadlineExceededException) {
+            return Mono.just(new RequestResult("EXPIRED"));
+        }
+        if (e instanceof InvalidCallbacksException) {
+            return Mono.just(new RequestResult("INVALID"));
+        }
+        log.warn("Bulk request failed: {}", e.toString());
+        return Mono.just(new RequestResult("ERROR"));
+    }
+
+    private Mono<RequestResult> publishWork(Request req) {
+        String jobId = jobs.create();
+        return Mono.fromRunnable(() -> transport.publish(req.withJobId(jobId)))
+                .doOnError(e -> jobs.remove(jobId))
+                .thenReturn(new RequestResult("In process", jobId));
+    }
+
+    private Mono<RequestResult> callWorkerAndCallback(Request req, String tenant) {
+        String jobId = jobs.create();
+        if (!executor.submit(runPipeline(req.withJobId(jobId)), req.getPriority(), req.getDeadline(), tenant)) {
+            log.warn("Pipeline queue full, rejecting callback request");
+            metrics.tenantRejected(tenant, "queue");
+            jobs.remove(jobId);
+            return Mono.error(new PipelineBusyException("Callback pipeline queue is full"));
+        }
+        return Mono.just(new RequestResult("In process", jobId));
     }
 }
@@ -0,0 +1,60 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caps retries at a fraction of request volume. Every request deposits
+// retryRatio of a token and every retry withdraws a whole one; a small
+// per-second allowance keeps retries possible at very low traffic.
+class RetryBudget {
+    private static final long TOKEN = 1000;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final int minPerSecond;
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong floorWindow = new AtomicLong();
+    private final AtomicLong floorUsed = new AtomicLong();
+
+    public RetryBudget(SpringWebProperties.Resilience props) {
+        this(props.getRetryRatio(), props.getMinRetriesPerSecond());
+    }
+
+    public RetryBudget(double ratio, int minPerSecond) {
+        this.deposit = Math.round(ratio * TOKEN);
+        this.minPerSecond = minPerSecond;
+        this.maxBalance = Math.max(TOKEN, Math.round(ratio * TOKEN * 1000));
+    }
+
+    public void onRequest() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+    }
+
+    public boolean tryRetry() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                return tryFloor();
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    private boolean tryFloor() {
+        long second = System.nanoTime() / NANOS_PER_SECOND;
+        long window = floorWindow.get();
+        if (window != second && floorWindow.compareAndSet(window, second)) {
+            floorUsed.set(0);
+        }
+        return floorUsed.incrementAndGet() <= minPerSecond;
+    }
+}
@@ -0,0 +1,56 @@
+package org.bscode.springweb.service;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Collapses concurrent calls with the same key onto one subscription. Every
+// subscriber sees the same value or error, and the shared call is only
+// cancelled once all of its subscribers have cancelled.
+class SingleFlight<K, V> {
+    private final int maxKeys;
+    private final ConcurrentHashMap<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+
+    public SingleFlight(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public Mono<V> execute(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            Mono<V> existing = inFlight.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (inFlight.size() >= maxKeys) {
+                return call.get();
+            }
+            Flight flight = new Flight(key, call);
+            existing = inFlight.putIfAbsent(key, flight.shared);
+            return existing != null ? existing : flight.shared;
+        });
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+    private class Flight {
+        final K key;
+        final Mono<V> shared;
+
+        Flight(K key, Supplier<Mono<V>> call) {
+            this.key = key;
+            shared = Mono.defer(call)
+                    .doFinally(signal -> release())
+                    .flux()
+                    .publish()
+                    .refCount(1)
+                    .next();
+        }
+
+        void release() {
+            inFlight.remove(key, shared);
+        }
+    }
+}
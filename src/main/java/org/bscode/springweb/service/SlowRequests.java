@@ -0,0 +1,102 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.SlowRequest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+
+// The slowest recent requests, kept as two generations of a bounded min-heap
+// that each cover one window, so what is shown spans one to two windows. A
+// finished request only takes the lock when it beats the fastest one kept;
+// once a generation is full, everything quicker is turned away on a volatile
+// read. Nothing is built for display until someone asks.
+class SlowRequests {
+    private static final Comparator<Entry> FASTEST_FIRST = Comparator.comparingLong(e -> e.nanos);
+
+    private final int capacity;
+    private final long windowNanos;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    public SlowRequests(SpringWebProperties.Diagnostics props) {
+        this.capacity = props.getSlowRequests();
+        this.windowNanos = props.getSlowWindow().toNanos();
+        long now = System.nanoTime();
+        this.current = new Generation(now);
+        this.previous = new Generation(now - windowNanos);
+    }
+
+    public void offer(Trace trace, long nanos) {
+        if (capacity <= 0) {
+            return;
+        }
+        Generation generation = generation(System.nanoTime());
+        if (nanos <= generation.floor) {
+            return;
+        }
+        synchronized (generation) {
+            generation.heap.offer(new Entry(trace, nanos));
+            if (generation.heap.size() > capacity) {
+                generation.heap.poll();
+            }
+            if (generation.heap.size() == capacity) {
+                generation.floor = generation.heap.peek().nanos;
+            }
+        }
+    }
+
+    // Slowest first
+    public List<SlowRequest> snapshot() {
+        Generation now = generation(System.nanoTime());
+        List<Entry> entries = new ArrayList<>();
+        for (Generation generation : new Generation[]{now, previous}) {
+            synchronized (generation) {
+                entries.addAll(generation.heap);
+            }
+        }
+        return entries.stream()
+                .sorted(FASTEST_FIRST.reversed())
+                .limit(capacity)
+                .map(e -> e.trace.view())
+                .collect(Collectors.toList());
+    }
+
+    private Generation generation(long now) {
+        Generation generation = current;
+        if (now - generation.started < windowNanos) {
+            return generation;
+        }
+        synchronized (this) {
+            if (now - current.started >= windowNanos) {
+                previous = now - current.started >= 2 * windowNanos ? new Generation(now) : current;
+                current = new Generation(now);
+            }
+            return current;
+        }
+    }
+
+    private final class Generation {
+        final long started;
+        final PriorityQueue<Entry> heap = new PriorityQueue<>(capacity + 1, FASTEST_FIRST);
+        // Duration a request has to beat once the heap is full
+        volatile long floor = -1;
+
+        Generation(long started) {
+            this.started = started;
+        }
+    }
+
+    private static final class Entry {
+        final Trace trace;
+        final long nanos;
+
+        Entry(Trace trace, long nanos) {
+            this.trace = trace;
+            this.nanos = nanos;
+        }
+    }
+}
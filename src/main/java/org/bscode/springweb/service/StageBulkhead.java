@@ -0,0 +1,97 @@
+package org.bscode.springweb.service;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Caps the calls one pipeline stage makes at once, with a small queue of
+// calls waiting for a turn; once that is full the stage refuses further calls
+// straight away. Nothing blocks: a waiting call is a sink that is completed
+// when a turn frees up. A call cancelled while waiting is skipped, and one
+// cancelled after its turn came gives the turn back.
+class StageBulkhead {
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final String stage;
+    private final int limit;
+    private final int queueCapacity;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<Waiter> waiting = new ConcurrentLinkedQueue<>();
+
+    public StageBulkhead(String stage, int limit, int queueCapacity) {
+        this.stage = stage;
+        this.limit = limit;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public <T> Mono<T> run(Mono<T> call) {
+        return Mono.defer(() -> {
+            if (queued.get() == 0 && tryAcquire()) {
+                return call.doFinally(signal -> release());
+            }
+            if (queued.incrementAndGet() > queueCapacity) {
+                queued.decrementAndGet();
+                return Mono.error(new DownstreamRejectedException("The " + stage + " stage is full"));
+            }
+            Waiter waiter = new Waiter();
+            waiting.offer(waiter);
+            drain();
+            return waiter.turn.asMono()
+                    .then(call)
+                    .doFinally(signal -> {
+                        if (waiter.state.compareAndSet(WAITING, CANCELLED)) {
+                            queued.decrementAndGet();
+                        } else {
+                            release();
+                        }
+                    });
+        });
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        while (!waiting.isEmpty() && tryAcquire()) {
+            Waiter next = waiting.poll();
+            if (next == null || !next.state.compareAndSet(WAITING, GRANTED)) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            next.turn.tryEmitEmpty();
+        }
+    }
+
+    private static final class Waiter {
+        final Sinks.Empty<Void> turn = Sinks.empty();
+        final AtomicInteger state = new AtomicInteger(WAITING);
+    }
+}
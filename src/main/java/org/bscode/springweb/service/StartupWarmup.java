@@ -0,0 +1,155 @@
+package org.bscode.springweb.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.server.HttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Pushes synthetic requests through a throwaway RequestService and its three
+// clients before the node reports ready, so the first real requests find
+// classes loaded and the hot paths compiled. The throwaway service is bound
+// from this node's own settings but calls a loopback stub for the worker,
+// the archive and the callbacks, so no real downstream sees warm-up traffic.
+// Boot declares readiness only after the application runners are done.
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "spring-web.warmup", name = "enabled", havingValue = "true")
+public class StartupWarmup implements ApplicationRunner {
+    private static final String RESULT = "{\"status\":\"OK\"}";
+
+    private final SpringWebProperties.Warmup props;
+    private final Environment environment;
+    private final ConfigurableApplicationContext context;
+    private final Map<String, Sinks.Empty<Void>> finished = new ConcurrentHashMap<>();
+
+    public StartupWarmup(SpringWebProperties props, Environment environment, ConfigurableApplicationContext context) {
+        this.props = props.getWarmup();
+        this.environment = environment;
+        this.context = context;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.nanoTime();
+        DisposableServer stub = stub();
+        try {
+            long done = warmUp("http://127.0.0.1:" + stub.port());
+            log.info("Warm-up sent {} requests in {}ms", done,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (RuntimeException e) {
+            // A node that warmed up partly is still better off than a cold one
+            log.warn("Warm-up stopped early after {}ms: {}",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e.toString());
+        } finally {
+            finished.clear();
+            stub.disposeNow();
+        }
+        if (props.isExit()) {
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    long warmUp(String stubUrl) {
+        SpringWebProperties settings = settings(stubUrl);
+        HttpClientFactory clients = new HttpClientFactory(settings);
+        JobStore jobs = new JobStore(settings);
+        RequestService service = new RequestService(settings, clients, null, new SimpleMeterRegistry(), jobs);
+        Disposable completions = jobs.completions()
+                .subscribe(status -> finished(status.getJobId()).tryEmitEmpty());
+        try {
+            return Flux.range(0, props.getRequests())
+                    .flatMap(i -> request(service, stubUrl, i)
+                            .onErrorResume(e -> {
+                                log.debug("Warm-up request failed: {}", e.toString());
+                                return Mono.empty();
+                            }), props.getConcurrency())
+                    .count()
+                    .block(props.getTimeout());
+        } finally {
+            completions.dispose();
+            service.shutdown();
+            jobs.close();
+            clients.dispose();
+        }
+    }
+
+    // Alternates synchronous calls, relayed ones when pass-through is on, and
+    // callback jobs, which only count as done once the job has finished
+    private Mono<Integer> request(RequestService service, String stubUrl, int i) {
+        if (i % 2 == 0) {
+            if (service.passThrough() && i % 4 == 0) {
+                byte[] body = "{\"idempotent\":true}".getBytes(StandardCharsets.UTF_8);
+                RequestScan scan = new RequestScan(null, null, true);
+                return service.relayWork(DefaultDataBufferFactory.sharedInstance.wrap(body), scan, Tenants.ANONYMOUS)
+                        .thenReturn(i);
+            }
+            return service.scheduleWork(new Request(null), Tenants.ANONYMOUS).thenReturn(i);
+        }
+        return service.scheduleWork(new Request(stubUrl + "/callback"), Tenants.ANONYMOUS)
+                .flatMap(accepted -> finished(accepted.getJobId()).asMono()
+                        .doFinally(signal -> finished.remove(accepted.getJobId())))
+                .thenReturn(i);
+    }
+
+    // Whichever comes first, the job finishing or its requester waiting for it, creates the sink
+    private Sinks.Empty<Void> finished(String jobId) {
+        return finished.computeIfAbsent(jobId, id -> Sinks.empty());
+    }
+
+    // This node's settings with every downstream on the stub and nothing that
+    // would outlive the warm-up: no redelivery journal, no tenant limits, no
+    // pool metrics and no prewarmed connections
+    private SpringWebProperties settings(String stubUrl) {
+        SpringWebProperties settings = Binder.get(environment).bindOrCreate("spring-web", SpringWebProperties.class);
+        settings.setParamBaseUrl(stubUrl);
+        settings.setArchiveBaseUrl(stubUrl);
+        settings.getRedelivery().setEnabled(false);
+        settings.getTenants().setRate(0);
+        settings.getPool().setName(settings.getPool().getName() + "-warmup");
+        settings.getPool().setMetrics(false);
+        settings.getPool().setPrewarmConnections(0);
+        return settings;
+    }
+
+    // Answers at once, over HTTP/1.1 or h2c so either client transport gets exercised
+    private DisposableServer stub() {
+        return HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .protocol(HttpProtocol.HTTP11, HttpProtocol.H2C)
+                .route(routes -> routes
+                        .post("/worker", (req, res) -> res
+                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .sendString(req.receive().aggregate().thenReturn(RESULT)))
+                        .post("/archive", (req, res) -> res
+                                .sendString(req.receive().aggregate().thenReturn("archived")))
+                        .post("/archive/batch", (req, res) -> res
+                                .sendString(req.receive().aggregate().thenReturn("archived")))
+                        .post("/callback", (req, res) -> res
+                                .sendString(req.receive().aggregate().thenReturn("done"))))
+                .bindNow();
+    }
+}
@@ -0,0 +1,105 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket per tenant, kept in GCRA form: a single AtomicLong holding the
+// time at which the bucket is full again, so a check is one CAS with no lock
+// and tenants never contend with each other. A bucket whose time has passed
+// is full, which is also what a missing bucket means, so idle buckets can be
+// evicted at any moment without changing an answer.
+class TenantLimiter {
+    private static final long SWEEP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final SpringWebProperties.Tenants props;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final Bucket overflow;
+
+    public TenantLimiter(SpringWebProperties.Tenants props) {
+        this.props = props;
+        this.overflow = props.getRate() > 0 ? new Bucket(props.getRate(), props.getBurst(), System.nanoTime()) : null;
+    }
+
+    // 0 when the request may go ahead, otherwise nanos until it could
+    public long tryAcquire(String tenant) {
+        long now = System.nanoTime();
+        Bucket bucket = bucket(tenant, now);
+        return bucket == null ? 0 : bucket.tryAcquire(now);
+    }
+
+    public int weight(String tenant) {
+        SpringWebProperties.TenantLimit limit = props.getOverrides().get(tenant);
+        return limit != null && limit.getWeight() != null ? limit.getWeight() : props.getWeight();
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private Bucket bucket(String tenant, long now) {
+        Bucket bucket = buckets.get(tenant);
+        if (bucket != null) {
+            return bucket;
+        }
+        SpringWebProperties.TenantLimit limit = props.getOverrides().get(tenant);
+        double rate = limit != null && limit.getRate() != null ? limit.getRate() : props.getRate();
+        int burst = limit != null && limit.getBurst() != null ? limit.getBurst() : props.getBurst();
+        if (rate <= 0) {
+            return null;
+        }
+        // Tenants with overrides always get their own bucket
+        if (limit == null && buckets.size() >= props.getMaxTenants()) {
+            sweep(now);
+            if (buckets.size() >= props.getMaxTenants()) {
+                return overflow;
+            }
+        }
+        return buckets.computeIfAbsent(tenant, t -> new Bucket(rate, burst, now));
+    }
+
+    // Drops full buckets, at most once per SWEEP_INTERVAL. A request racing
+    // with the sweep may take its token from a bucket that was just dropped,
+    // which can let one extra request through.
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.full(now));
+    }
+
+    static final class Bucket {
+        private final long interval;
+        private final long tolerance;
+        private final AtomicLong fullAt;
+
+        Bucket(double rate, int burst, long now) {
+            this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+            this.tolerance = interval * Math.max(1, burst);
+            this.fullAt = new AtomicLong(now);
+        }
+
+        long tryAcquire(long now) {
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + interval;
+                long wait = next - now - tolerance;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        boolean full(long now) {
+            return fullAt.get() - now <= 0;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.bscode.springweb.service;
+
+import java.util.concurrent.TimeUnit;
+
+public class TenantThrottledException extends RuntimeException {
+    private final long retryAfterNanos;
+
+    public TenantThrottledException(String tenant, long retryAfterNanos) {
+        super("Rate limit exceeded for tenant " + tenant);
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    // Whole seconds, as the Retry-After header wants them
+    public long retryAfterSeconds() {
+        return Math.max(1, (retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,41 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.model.Request;
+
+import java.net.URI;
+
+// Callers are told apart by where they connect from. Behind a proxy that
+// authenticates callers, the tenant can instead be taken as the caller states
+// it: the X-Tenant header, or failing that the host their first callback goes
+// to. Rate limits and turns at the pipeline queue are kept per tenant.
+public final class Tenants {
+    public static final String HEADER = "X-Tenant";
+    static final String ANONYMOUS = "anonymous";
+
+    private Tenants() {
+    }
+
+    public static String resolve(String header, Request req, String remoteAddress, boolean trustCaller) {
+        if (trustCaller) {
+            if (header != null && !header.isBlank()) {
+                return header.trim();
+            }
+            String host = callbackHost(req);
+            if (host != null) {
+                return host;
+            }
+        }
+        return remoteAddress != null ? remoteAddress : ANONYMOUS;
+    }
+
+    private static String callbackHost(Request req) {
+        if (req == null || req.targets().isEmpty()) {
+            return null;
+        }
+        try {
+            return URI.create(req.targets().get(0)).getHost();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.model.SlowRequest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What one request's time went on: a span per stage and a count of
+// downstream attempts per stage. Callbacks of a fan-out record at the same
+// time, hence the synchronized methods; nothing else ever contends for them.
+final class Trace {
+    final String id;
+    final String kind;
+    final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private final List<SlowRequest.Span> spans = new ArrayList<>(4);
+    private final int[] attempts = new int[PipelineMetrics.Stage.values().length];
+    private long nanos = -1;
+    private String outcome;
+
+    Trace(String id, String kind) {
+        this.id = id;
+        this.kind = kind;
+    }
+
+    synchronized void span(String name, long start, long end, String outcome) {
+        spans.add(new SlowRequest.Span(name, (start - startNanos) / 1e6, (end - start) / 1e6, outcome));
+    }
+
+    synchronized int attempt(PipelineMetrics.Stage stage) {
+        return ++attempts[stage.ordinal()];
+    }
+
+    // Returns the request's duration; only the first call counts
+    synchronized long finish(String outcome) {
+        if (nanos < 0) {
+            nanos = System.nanoTime() - startNanos;
+            this.outcome = outcome;
+        }
+        return nanos;
+    }
+
+    synchronized SlowRequest view() {
+        Map<String, Integer> perStage = new LinkedHashMap<>();
+        for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+            if (attempts[stage.ordinal()] > 0) {
+                perStage.put(stage.tag, attempts[stage.ordinal()]);
+            }
+        }
+        return new SlowRequest(id, kind, Instant.ofEpochMilli(startMillis), nanos / 1e6, outcome,
+                List.copyOf(spans), perStage);
+    }
+
+    static String outcome(Throwable error) {
+        return error == null ? "ok" : error.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,96 @@
+package org.bscode.springweb.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight recorder events for the pipeline, tied together by trace id. An
+// event object is only made while a recording has the event enabled, so
+// without one the cost is a flag check per stage and per attempt.
+final class TraceEvents {
+    private static final EventType REQUEST = EventType.getEventType(RequestEvent.class);
+    private static final EventType STAGE = EventType.getEventType(StageEvent.class);
+    private static final EventType ATTEMPT = EventType.getEventType(AttemptEvent.class);
+
+    private TraceEvents() {
+    }
+
+    static RequestEvent request() {
+        if (!REQUEST.isEnabled()) {
+            return null;
+        }
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        return event;
+    }
+
+    static StageEvent stage() {
+        if (!STAGE.isEnabled()) {
+            return null;
+        }
+        StageEvent event = new StageEvent();
+        event.begin();
+        return event;
+    }
+
+    static AttemptEvent attempt() {
+        if (!ATTEMPT.isEnabled()) {
+            return null;
+        }
+        AttemptEvent event = new AttemptEvent();
+        event.begin();
+        return event;
+    }
+
+    @Name("org.bscode.springweb.Request")
+    @Label("Request")
+    @Description("A synchronous request or a callback pipeline, from acceptance to its last stage")
+    @Category({"Spring Web", "Pipeline"})
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("Trace Id")
+        String traceId;
+        @Label("Kind")
+        String kind;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.bscode.springweb.Stage")
+    @Label("Stage")
+    @Description("A worker, archive or callback call including its retries and hedges")
+    @Category({"Spring Web", "Pipeline"})
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("Trace Id")
+        String traceId;
+        @Label("Stage")
+        String stage;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.bscode.springweb.Attempt")
+    @Label("Downstream Attempt")
+    @Description("One HTTP exchange of a stage, up to its response headers; attempt 2 and up are retries or hedges")
+    @Category({"Spring Web", "Pipeline"})
+    @StackTrace(false)
+    static class AttemptEvent extends Event {
+        @Label("Trace Id")
+        String traceId;
+        @Label("Stage")
+        String stage;
+        @Label("Attempt")
+        int attempt;
+        @Label("URL")
+        String url;
+        @Label("Status")
+        int status;
+        @Label("Outcome")
+        String outcome;
+    }
+}
@@ -0,0 +1,96 @@
+package org.bscode.springweb.service;
+
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+// A request's Trace rides in the Reactor context of its calls, like its
+// deadline, so every stage and every downstream attempt can add to it.
+public final class Traces {
+    public static final String HEADER = "X-Trace-Id";
+    private static final String KEY = Traces.class.getName();
+
+    private Traces() {
+    }
+
+    // Random like a UUID, without the lock of the shared SecureRandom
+    static String newId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    static Function<Context, Context> context(Trace trace) {
+        return ctx -> trace == null ? ctx : ctx.put(KEY, trace);
+    }
+
+    // For calls shared between requests, which belong to none of their traces
+    static Function<Context, Context> detach() {
+        return ctx -> ctx.delete(KEY);
+    }
+
+    static Trace current(ContextView ctx) {
+        return ctx.getOrDefault(KEY, null);
+    }
+
+    // Sends the trace id downstream as an X-Trace-Id header, and counts and
+    // records each exchange, so retries and hedges show up as attempts 2 and up
+    static ExchangeFilterFunction propagate(PipelineMetrics.Stage stage) {
+        return filter(stage, true);
+    }
+
+    // Counts and records each exchange like propagate, but keeps the trace id
+    // to ourselves; for hosts outside the pipeline such as callback targets
+    static ExchangeFilterFunction record(PipelineMetrics.Stage stage) {
+        return filter(stage, false);
+    }
+
+    private static ExchangeFilterFunction filter(PipelineMetrics.Stage stage, boolean sendId) {
+        return (request, next) -> Mono.deferContextual(ctx -> {
+            Trace trace = current(ctx);
+            if (trace == null) {
+                return next.exchange(request);
+            }
+            int attempt = trace.attempt(stage);
+            TraceEvents.AttemptEvent event = TraceEvents.attempt();
+            Mono<ClientResponse> exchange = next.exchange(sendId
+                    ? ClientRequest.from(request).header(HEADER, trace.id).build()
+                    : request);
+            if (event == null) {
+                return exchange;
+            }
+            // A losing hedge or a timed-out attempt is cancelled rather than failed;
+            // the first signal wins, as a cancel can still follow the response
+            AtomicBoolean done = new AtomicBoolean();
+            return exchange
+                    .doOnSuccess(response -> commit(done, event, trace, stage, attempt, request, response, "ok"))
+                    .doOnError(e -> commit(done, event, trace, stage, attempt, request, null, Trace.outcome(e)))
+                    .doOnCancel(() -> commit(done, event, trace, stage, attempt, request, null, "cancelled"));
+        });
+    }
+
+    private static void commit(AtomicBoolean done, TraceEvents.AttemptEvent event, Trace trace,
+                               PipelineMetrics.Stage stage, int attempt, ClientRequest request,
+                               ClientResponse response, String outcome) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.traceId = trace.id;
+            event.stage = stage.tag;
+            event.attempt = attempt;
+            event.url = request.url().toString();
+            event.status = response != null ? response.rawStatusCode() : 0;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.bscode.springweb.service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bloom filter over a sliding time window, kept as two generations of the
+// same size: keys go into the current one and lookups check both. When the
+// current generation is a window old it becomes the previous one and the
+// oldest is dropped, so a key is remembered for between one and two windows
+// in fixed memory. Bits are set with CAS, so adding and checking take no lock.
+class WindowedBloomFilter {
+    private final int bits;
+    private final int hashes;
+    private final long windowNanos;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    public WindowedBloomFilter(int expectedKeys, double falsePositiveRate, Duration window) {
+        double ln2 = Math.log(2);
+        this.bits = (int) Math.min(Integer.MAX_VALUE - 63,
+                Math.max(64, Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2))));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedKeys * ln2));
+        this.windowNanos = window.toNanos();
+        long now = System.nanoTime();
+        this.current = new Generation(bits, now);
+        this.previous = new Generation(bits, now - windowNanos);
+    }
+
+    // Whether the key may have been added within the window; false is certain
+    public boolean mightContain(String key, long now) {
+        rotate(now);
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        return current.containsAll(h1, h2) || previous.containsAll(h1, h2);
+    }
+
+    public void add(String key, long now) {
+        rotate(now);
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        current.setAll(h1, h2);
+    }
+
+    private void rotate(long now) {
+        if (now - current.started < windowNanos) {
+            return;
+        }
+        synchronized (this) {
+            if (now - current.started >= windowNanos) {
+                previous = now - current.started >= 2 * windowNanos ? new Generation(bits, now) : current;
+                current = new Generation(bits, now);
+            }
+        }
+    }
+
+    // FNV-1a over the key's chars, then a 64-bit finaliser; the second hash
+    // for double hashing is derived from the first
+    private static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private final class Generation {
+        final AtomicLongArray words;
+        final long started;
+
+        Generation(int bits, long started) {
+            this.words = new AtomicLongArray((bits + 63) / 64);
+            this.started = started;
+        }
+
+        boolean containsAll(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) Long.remainderUnsigned(h1 + i * h2, bits);
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void setAll(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) Long.remainderUnsigned(h1 + i * h2, bits);
+                long mask = 1L << bit;
+                words.getAndAccumulate(bit >>> 6, mask, (word, m) -> word | m);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.bscode.springweb.load;
+
+import org.HdrHistogram.Histogram;
+import org.bscode.springweb.SpringWebApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Boots the application against local stub services, drives /request/ at a
+// series of increasing open-model rates and prints a capacity table with the
+// knee point: the highest rate that still meets the throughput, error and
+// latency criteria.
+//
+//   mvn -Pperf test-compile exec:exec -Dperf.main=org.bscode.springweb.load.CapacityReport \
+//       -Dperf.args="--rates=50,100,200,400,800 --step-seconds=20 --callback-ratio=0.5"
+//
+// Any other --spring-web.* or --server.* argument is passed to the application.
+public final class CapacityReport {
+    private CapacityReport() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> appArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--spring") || arg.startsWith("--server") || arg.startsWith("--management")) {
+                appArgs.add(arg);
+            } else if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int[] rates = Arrays.stream(options.getOrDefault("rates", "50,100,200,400,800").split(","))
+                .mapToInt(r -> Integer.parseInt(r.trim()))
+                .toArray();
+        Duration step = Duration.ofSeconds(Long.parseLong(options.getOrDefault("step-seconds", "20")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup-seconds", "10")));
+        double callbackRatio = Double.parseDouble(options.getOrDefault("callback-ratio", "0.5"));
+        Duration workerDelay = Duration.ofMillis(Long.parseLong(options.getOrDefault("worker-delay-ms", "20")));
+        int maxOutstanding = Integer.parseInt(options.getOrDefault("max-outstanding", "10000"));
+        double kneeLatencyFactor = Double.parseDouble(options.getOrDefault("knee-latency-factor", "3"));
+
+        try (StubServices stubs = new StubServices(workerDelay)) {
+            int port = freePort();
+            appArgs.add(0, "--server.port=" + port);
+            appArgs.add(0, "--spring-web.param-base-url=" + stubs.baseUrl());
+            appArgs.add(0, "--spring-web.archive-base-url=" + stubs.baseUrl());
+            ConfigurableApplicationContext app = new SpringApplicationBuilder(SpringWebApplication.class)
+                    .run(appArgs.toArray(new String[0]));
+            try (LoadGenerator generator = new LoadGenerator("http://127.0.0.1:" + port + "/request/",
+                    stubs, callbackRatio, maxOutstanding, Duration.ofSeconds(30))) {
+                System.out.printf("Warming up at %d req/s for %ds%n", rates[0], warmup.toSeconds());
+                generator.run(rates[0], warmup);
+
+                List<LoadGenerator.StepResult> results = new ArrayList<>();
+                for (int rate : rates) {
+                    System.out.printf("Offering %d req/s for %ds%n", rate, step.toSeconds());
+                    results.add(generator.run(rate, step));
+                }
+                print(results, callbackRatio, workerDelay, kneeLatencyFactor);
+            } finally {
+                app.close();
+            }
+        }
+    }
+
+    private static void print(List<LoadGenerator.StepResult> results, double callbackRatio,
+                              Duration workerDelay, double kneeLatencyFactor) {
+        System.out.printf("%nCapacity report (callback ratio %.2f, worker delay %dms)%n",
+                callbackRatio, workerDelay.toMillis());
+        System.out.printf("Latencies in ms, measured from intended start (coordinated-omission corrected);"
+                + " raw p99 is from actual send.%n");
+        System.out.printf("%8s %10s %8s %8s %8s %8s %8s %8s %8s %10s %10s %8s%n",
+                "offered", "achieved", "busy%", "err%", "p50", "p90", "p99", "p99.9", "max", "raw p99", "cb p99", "cb lost");
+        double baselineP99 = ms(results.get(0).corrected, 99.0);
+        LoadGenerator.StepResult knee = null;
+        boolean belowKnee = true;
+        for (LoadGenerator.StepResult r : results) {
+            System.out.printf("%8d %10.1f %8.2f %8.2f %8.1f %8.1f %8.1f %8.1f %8.1f %10.1f %10.1f %8d%n",
+                    r.rate, r.throughput(), 100.0 * r.busy / r.sent, 100.0 * r.errors / r.sent,
+                    ms(r.corrected, 50.0), ms(r.corrected, 90.0), ms(r.corrected, 99.0),
+                    ms(r.corrected, 99.9), r.corrected.getMaxValue() / 1e6,
+                    ms(r.uncorrected, 99.0), ms(r.callbacks, 99.0), r.lostCallbacks);
+            boolean healthy = r.throughput() >= 0.95 * r.rate * (1 - r.errorRate())
+                    && r.errorRate() < 0.01
+                    && ms(r.corrected, 99.0) <= Math.max(1.0, baselineP99) * kneeLatencyFactor;
+            if (belowKnee && healthy) {
+                knee = r;
+            } else {
+                belowKnee = false;
+            }
+        }
+        if (knee == null) {
+            System.out.println("Knee: not reached; even the lowest rate failed the criteria");
+        } else {
+            System.out.printf("Knee: %d req/s (p99 %.1fms; criteria: >=95%% of offered, <1%% errors,"
+                    + " p99 <= %.1fx the lowest-rate p99)%n", knee.rate, ms(knee.corrected, 99.0), kneeLatencyFactor);
+        }
+    }
+
+    private static double ms(Histogram histogram, double percentile) {
+        return histogram.getTotalCount() == 0 ? 0 : histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
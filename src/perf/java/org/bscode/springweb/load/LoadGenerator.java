@@ -0,0 +1,160 @@
+package org.bscode.springweb.load;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Open-model load: requests are sent on a fixed schedule whether or not
+// earlier ones have answered, and latency is measured from each request's
+// intended start, which corrects for coordinated omission.
+class LoadGenerator implements AutoCloseable {
+    private final String requestUrl;
+    private final StubServices stubs;
+    private final double callbackRatio;
+    private final int maxOutstanding;
+    private final ConnectionProvider provider;
+    private final HttpClient client;
+    private final AtomicLong ids = new AtomicLong();
+
+    LoadGenerator(String requestUrl, StubServices stubs, double callbackRatio, int maxOutstanding,
+                  Duration timeout) {
+        this.requestUrl = requestUrl;
+        this.stubs = stubs;
+        this.callbackRatio = callbackRatio;
+        this.maxOutstanding = maxOutstanding;
+        this.provider = ConnectionProvider.builder("load-generator")
+                .maxConnections(maxOutstanding)
+                .pendingAcquireMaxCount(-1)
+                .build();
+        this.client = HttpClient.create(provider)
+                .responseTimeout(timeout)
+                .headers(h -> h.set(HttpHeaderNames.CONTENT_TYPE, "application/json"));
+    }
+
+    StepResult run(int rate, Duration duration) {
+        Recorder corrected = new Recorder(3);
+        Recorder uncorrected = new Recorder(3);
+        AtomicLong ok = new AtomicLong();
+        AtomicLong busy = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicInteger outstanding = new AtomicInteger();
+        stubs.resetCallbacks();
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long sent = 0;
+        for (long intended = start; intended < end; intended += intervalNanos) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            sent++;
+            if (outstanding.incrementAndGet() > maxOutstanding) {
+                outstanding.decrementAndGet();
+                errors.incrementAndGet();
+                continue;
+            }
+            long intendedStart = intended;
+            long actualStart = System.nanoTime();
+            send(intendedStart).subscribe(
+                    status -> {
+                        long now = System.nanoTime();
+                        corrected.recordValue(now - intendedStart);
+                        uncorrected.recordValue(now - actualStart);
+                        if (status == 200) {
+                            ok.incrementAndGet();
+                        } else if (status == 503 || status == 429) {
+                            busy.incrementAndGet();
+                        } else {
+                            errors.incrementAndGet();
+                        }
+                    },
+                    e -> {
+                        corrected.recordValue(System.nanoTime() - intendedStart);
+                        errors.incrementAndGet();
+                        outstanding.decrementAndGet();
+                    },
+                    outstanding::decrementAndGet);
+        }
+        while (outstanding.get() > 0 && System.nanoTime() - end < TimeUnit.SECONDS.toNanos(30)) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        long elapsed = System.nanoTime() - start;
+        awaitCallbacks();
+        Histogram callbacks = stubs.callbackLatency().getIntervalHistogram();
+        return new StepResult(rate, sent, ok.get(), busy.get(), errors.get(), elapsed,
+                corrected.getIntervalHistogram(), uncorrected.getIntervalHistogram(),
+                callbacks, stubs.outstandingCallbacks());
+    }
+
+    private Mono<Integer> send(long intendedStart) {
+        String body = "{}";
+        if (callbackRatio > 0 && ThreadLocalRandom.current().nextDouble() < callbackRatio) {
+            String id = Long.toString(ids.incrementAndGet());
+            body = "{\"callback\":\"" + stubs.expectCallback(id, intendedStart) + "\"}";
+        }
+        return client.post()
+                .uri(requestUrl)
+                .send(ByteBufFlux.fromString(Mono.just(body)))
+                .responseSingle((response, content) -> content.then(Mono.just(response.status().code())));
+    }
+
+    private void awaitCallbacks() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (stubs.outstandingCallbacks() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    @Override
+    public void close() {
+        provider.dispose();
+    }
+
+    static class StepResult {
+        final int rate;
+        final long sent;
+        final long ok;
+        final long busy;
+        final long errors;
+        final long elapsedNanos;
+        final Histogram corrected;
+        final Histogram uncorrected;
+        final Histogram callbacks;
+        final int lostCallbacks;
+
+        StepResult(int rate, long sent, long ok, long busy, long errors, long elapsedNanos,
+                   Histogram corrected, Histogram uncorrected, Histogram callbacks, int lostCallbacks) {
+            this.rate = rate;
+            this.sent = sent;
+            this.ok = ok;
+            this.busy = busy;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.corrected = corrected;
+            this.uncorrected = uncorrected;
+            this.callbacks = callbacks;
+            this.lostCallbacks = lostCallbacks;
+        }
+
+        double throughput() {
+            return ok * 1e9 / elapsedNanos;
+        }
+
+        double errorRate() {
+            return sent == 0 ? 0 : (double) (busy + errors) / sent;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.bscode.springweb.load;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.HdrHistogram.Histogram;
+import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Starts the application as a fresh JVM a number of times and reports, per
+// run, how long it takes from launch until the node is ready and /request/
+// first answers 200 (time-to-first-request), and from then on until the latency of one-second
+// load windows has settled (time-to-steady-state). A window counts as
+// settled when its p99 is within --steady-factor of the p99 over the last
+// third of the run, and steady state is the start of the first window from
+// which every later window is settled.
+//
+//   mvn -Pfaststart package
+//   mvn -Pperf test-compile exec:exec -Dperf.main=org.bscode.springweb.load.StartupBenchmark \
+//       -Dperf.args="--jar=target/faststart/spring-web-0.0.1-SNAPSHOT-faststart.jar \
+//           --jvm-args=-XX:SharedArchiveFile=target/faststart/spring-web.jsa --spring.profiles.active=faststart"
+//
+// Any --spring*, --server* or --management* argument is passed to the
+// application; --jvm-args is split on spaces. Without --jar the boot jar is used.
+public final class StartupBenchmark {
+    private StartupBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> appArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--spring") || arg.startsWith("--server") || arg.startsWith("--management")) {
+                appArgs.add(arg);
+            } else if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        String jar = options.getOrDefault("jar", "target/spring-web-0.0.1-SNAPSHOT.jar");
+        List<String> jvmArgs = options.containsKey("jvm-args")
+                ? Arrays.asList(options.get("jvm-args").trim().split("\\s+"))
+                : List.of();
+        int runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "200"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        double callbackRatio = Double.parseDouble(options.getOrDefault("callback-ratio", "0.5"));
+        double steadyFactor = Double.parseDouble(options.getOrDefault("steady-factor", "1.5"));
+        Duration workerDelay = Duration.ofMillis(Long.parseLong(options.getOrDefault("worker-delay-ms", "20")));
+        Duration startTimeout = Duration.ofSeconds(Long.parseLong(options.getOrDefault("start-timeout-seconds", "120")));
+
+        List<Run> results = new ArrayList<>();
+        try (StubServices stubs = new StubServices(workerDelay)) {
+            for (int i = 1; i <= runs; i++) {
+                int port = freePort();
+                List<String> command = new ArrayList<>();
+                command.add(ProcessHandle.current().info().command().orElse("java"));
+                command.addAll(jvmArgs);
+                command.add("-jar");
+                command.add(jar);
+                command.add("--server.port=" + port);
+                command.add("--spring-web.param-base-url=" + stubs.baseUrl());
+                command.add("--spring-web.archive-base-url=" + stubs.baseUrl());
+                command.add("--spring-web.redelivery.enabled=false");
+                command.addAll(appArgs);
+                File log = new File("target/startup-benchmark-" + i + ".log");
+                System.out.printf("Run %d: %s (output in %s)%n", i, String.join(" ", command), log);
+
+                long launched = System.nanoTime();
+                Process app = new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(log)
+                        .start();
+                try (LoadGenerator generator = new LoadGenerator("http://127.0.0.1:" + port + "/request/",
+                        stubs, callbackRatio, 10000, Duration.ofSeconds(30))) {
+                    long firstRequest = awaitFirstRequest(port, launched, startTimeout, app);
+                    List<Histogram> windows = new ArrayList<>();
+                    for (int s = 0; s < seconds; s++) {
+                        windows.add(generator.run(rate, Duration.ofSeconds(1)).corrected);
+                    }
+                    results.add(new Run(i, firstRequest - launched, windows, steadyFactor));
+                } finally {
+                    app.destroy();
+                    if (!app.waitFor(30, TimeUnit.SECONDS)) {
+                        app.destroyForcibly();
+                    }
+                }
+            }
+        }
+        print(results, rate, callbackRatio, steadyFactor);
+    }
+
+    // Waits for the readiness probe the way a load balancer would, where the
+    // node has one (a 404 means it has none), then polls with synchronous
+    // requests until one answers 200
+    private static long awaitFirstRequest(int port, long launched, Duration timeout, Process app) {
+        HttpClient client = HttpClient.create()
+                .responseTimeout(Duration.ofSeconds(10))
+                .headers(h -> h.set(HttpHeaderNames.CONTENT_TYPE, "application/json"));
+        boolean ready = false;
+        while (System.nanoTime() - launched < timeout.toNanos()) {
+            if (!app.isAlive()) {
+                throw new IllegalStateException("Application exited with " + app.exitValue());
+            }
+            if (!ready) {
+                Integer probe = client.get()
+                        .uri("http://127.0.0.1:" + port + "/actuator/health/readiness")
+                        .responseSingle((response, content) -> content.then(Mono.just(response.status().code())))
+                        .onErrorResume(e -> Mono.empty())
+                        .block();
+                ready = probe != null && (probe == 200 || probe == 404);
+            } else {
+                Integer status = client.post()
+                        .uri("http://127.0.0.1:" + port + "/request/")
+                        .send(ByteBufFlux.fromString(Mono.just("{}")))
+                        .responseSingle((response, content) -> content.then(Mono.just(response.status().code())))
+                        .onErrorResume(e -> Mono.empty())
+                        .block();
+                if (status != null && status == 200) {
+                    return System.nanoTime();
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalStateException("No answer within " + timeout);
+    }
+
+    private static void print(List<Run> results, int rate, double callbackRatio, double steadyFactor) {
+        System.out.printf("%nStartup report (%d req/s, callback ratio %.2f, windows settle within %.1fx"
+                + " of the late p99)%n", rate, callbackRatio, steadyFactor);
+        System.out.printf("%4s %16s %18s %14s %14s %14s%n",
+                "run", "first req (ms)", "steady after (s)", "first p99", "late p99", "max p99");
+        for (Run r : results) {
+            System.out.printf("%4d %16.0f %18s %14.1f %14.1f %14.1f%n",
+                    r.run, r.firstRequestNanos / 1e6,
+                    r.steadyWindow < 0 ? "never" : Integer.toString(r.steadyWindow),
+                    r.p99s[0], r.lateP99, Arrays.stream(r.p99s).max().orElse(0));
+        }
+        double[] firsts = results.stream().mapToDouble(r -> r.firstRequestNanos / 1e6).sorted().toArray();
+        System.out.printf("Median time-to-first-request: %.0fms%n", firsts[firsts.length / 2]);
+        double[] steady = results.stream().filter(r -> r.steadyWindow >= 0)
+                .mapToDouble(r -> r.steadyWindow).sorted().toArray();
+        if (steady.length > 0) {
+            System.out.printf("Median time-to-steady-state: %.0fs after the first request%n", steady[steady.length / 2]);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Run {
+        final int run;
+        final long firstRequestNanos;
+        final double[] p99s;
+        final double lateP99;
+        final int steadyWindow;
+
+        Run(int run, long firstRequestNanos, List<Histogram> windows, double steadyFactor) {
+            this.run = run;
+            this.firstRequestNanos = firstRequestNanos;
+            this.p99s = windows.stream()
+                    .mapToDouble(h -> h.getTotalCount() == 0 ? 0 : h.getValueAtPercentile(99.0) / 1e6)
+                    .toArray();
+            Histogram late = new Histogram(3);
+            windows.subList(windows.size() * 2 / 3, windows.size()).forEach(late::add);
+            this.lateP99 = late.getTotalCount() == 0 ? 0 : late.getValueAtPercentile(99.0) / 1e6;
+            int steady = -1;
+            for (int w = p99s.length - 1; w >= 0 && p99s[w] <= lateP99 * steadyFactor; w--) {
+                steady = w;
+            }
+            this.steadyWindow = steady;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.bscode.springweb.load;
+
+import org.HdrHistogram.Recorder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Local worker, archive and callback endpoints for the load test. The worker
+// answers after a fixed, non-blocking delay; the callback endpoint records
+// end-to-end latency for callback-mode requests against their intended start.
+class StubServices implements AutoCloseable {
+    private static final String OK_RESULT = "{\"status\":\"OK\"}";
+
+    private final DisposableServer server;
+    private final Map<String, Long> pendingCallbacks = new ConcurrentHashMap<>();
+    private final Recorder callbackLatency = new Recorder(3);
+
+    StubServices(Duration workerDelay) {
+        server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .route(routes -> routes
+                        .post("/worker", (req, res) -> res
+                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .sendString(req.receive().aggregate()
+                                        .then(Mono.delay(workerDelay))
+                                        .thenReturn(OK_RESULT)))
+                        .post("/archive", (req, res) -> res
+                                .sendString(req.receive().aggregate().thenReturn("archived")))
+                        .post("/archive/batch", (req, res) -> res
+                                .sendString(req.receive().aggregate().thenReturn("archived")))
+                        .post("/callback/{id}", (req, res) -> {
+                            Long intendedStart = pendingCallbacks.remove(req.param("id"));
+                            if (intendedStart != null) {
+                                callbackLatency.recordValue(System.nanoTime() - intendedStart);
+                            }
+                            return res.sendString(req.receive().aggregate().thenReturn("done"));
+                        }))
+                .bindNow();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    String expectCallback(String id, long intendedStart) {
+        pendingCallbacks.put(id, intendedStart);
+        return baseUrl() + "/callback/" + id;
+    }
+
+    Recorder callbackLatency() {
+        return callbackLatency;
+    }
+
+    int outstandingCallbacks() {
+        return pendingCallbacks.size();
+    }
+
+    void resetCallbacks() {
+        pendingCallbacks.clear();
+        callbackLatency.reset();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+}
@@ -0,0 +1,79 @@
+package org.bscode.springweb.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Jackson encode/decode cost of the two wire models in JSON and Smile, using
+// readers and writers resolved once the way Spring's codecs cache them. Run
+// with -prof gc for bytes allocated per operation; encoded sizes are printed
+// at setup.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireCodecBenchmark {
+    @Param({"json", "smile"})
+    public String format;
+
+    private ObjectWriter requestWriter;
+    private ObjectReader requestReader;
+    private ObjectWriter resultWriter;
+    private ObjectReader resultReader;
+    private Request request;
+    private RequestResult result;
+    private byte[] requestBytes;
+    private byte[] resultBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        ObjectMapper mapper = "smile".equals(format) ? new ObjectMapper(new SmileFactory()) : new ObjectMapper();
+        requestWriter = mapper.writerFor(Request.class);
+        requestReader = mapper.readerFor(Request.class);
+        resultWriter = mapper.writerFor(RequestResult.class);
+        resultReader = mapper.readerFor(RequestResult.class);
+        request = new Request("http://callback.example.com:8080/echo/", "6ce7d62f-724b-4d2b-b2ad-c3746c1dbefb", true, null, 0);
+        result = new RequestResult("OK", "6ce7d62f-724b-4d2b-b2ad-c3746c1dbefb");
+        requestBytes = requestWriter.writeValueAsBytes(request);
+        resultBytes = resultWriter.writeValueAsBytes(result);
+        System.out.printf("%n%s: Request %d bytes, RequestResult %d bytes%n",
+                format, requestBytes.length, resultBytes.length);
+    }
+
+    @Benchmark
+    public byte[] serializeRequest() throws IOException {
+        return requestWriter.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public Request deserializeRequest() throws IOException {
+        return requestReader.readValue(requestBytes);
+    }
+
+    @Benchmark
+    public byte[] serializeResult() throws IOException {
+        return resultWriter.writeValueAsBytes(result);
+    }
+
+    @Benchmark
+    public RequestResult deserializeResult() throws IOException {
+        return resultReader.readValue(resultBytes);
+    }
+}
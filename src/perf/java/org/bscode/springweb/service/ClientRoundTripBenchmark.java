@@ -0,0 +1,75 @@
+package org.bscode.springweb.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One blocking round trip per client against the loopback stub, i.e. the
+// per-hop overhead of WebClient, codecs, guards and metrics.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientRoundTripBenchmark {
+    private LoopbackStub stub;
+    private HttpClientFactory factory;
+    private ParamClient paramClient;
+    private ArchiveClient archiveClient;
+    private CallbackClient callbackClient;
+    private String callbackUrl;
+    private final Request request = new Request(null);
+    private final RequestResult result = new RequestResult("OK");
+
+    @Setup
+    public void setup() {
+        stub = new LoopbackStub();
+        SpringWebProperties props = new SpringWebProperties();
+        props.setParamBaseUrl(stub.baseUrl());
+        props.setArchiveBaseUrl(stub.baseUrl());
+        factory = new HttpClientFactory(props);
+        DownstreamGuards guards = new DownstreamGuards(props.getResilience());
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        paramClient = new ParamClient(props, factory, guards, metrics);
+        archiveClient = new ArchiveClient(props, factory, guards, metrics);
+        callbackClient = new CallbackClient(props, factory, guards, metrics);
+        callbackUrl = stub.baseUrl() + "/callback/bench";
+    }
+
+    @TearDown
+    public void tearDown() {
+        archiveClient.dispose();
+        factory.dispose();
+        stub.close();
+    }
+
+    @Benchmark
+    public RequestResult callWorker() {
+        return paramClient.callWorker(request).block();
+    }
+
+    @Benchmark
+    public RequestResult callArchive() {
+        return archiveClient.callArchive(result).block();
+    }
+
+    @Benchmark
+    public String callCallback() {
+        return callbackClient.callCallback(callbackUrl, result).block();
+    }
+}
@@ -0,0 +1,66 @@
+package org.bscode.springweb.service;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-process Reactor Netty server answering /worker, /archive and
+// /callback/{id} instantly, so benchmarks measure our side of each hop.
+class LoopbackStub implements AutoCloseable {
+    static final String OK_RESULT = "{\"status\":\"OK\"}";
+
+    private final DisposableServer server;
+    private final Map<String, Sinks.One<String>> callbacks = new ConcurrentHashMap<>();
+
+    LoopbackStub() {
+        server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .route(routes -> routes
+                        .post("/worker", (req, res) -> res
+                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .sendString(req.receive().aggregate().then(Mono.just(OK_RESULT))))
+                        .post("/archive", (req, res) -> res
+                                .sendString(req.receive().aggregate().then(Mono.just("archived"))))
+                        .post("/archive/batch", (req, res) -> res
+                                .sendString(req.receive().aggregate().then(Mono.just("archived"))))
+                        .post("/callback/{id}", (req, res) -> {
+                            Sinks.One<String> sink = callbacks.remove(req.param("id"));
+                            return res.sendString(req.receive().aggregate().asString()
+                                    .doOnNext(body -> {
+                                        if (sink != null) {
+                                            sink.tryEmitValue(body);
+                                        }
+                                    })
+                                    .thenReturn("done"));
+                        }))
+                .bindNow();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    // Registers a callback id and returns its URL plus a Mono that completes
+    // when the stub receives the callback.
+    String expectCallback(String id) {
+        callbacks.put(id, Sinks.one());
+        return baseUrl() + "/callback/" + id;
+    }
+
+    Mono<String> callbackReceived(String id) {
+        Sinks.One<String> sink = callbacks.get(id);
+        return sink == null ? Mono.error(new IllegalStateException("Unknown callback " + id)) : sink.asMono();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+}
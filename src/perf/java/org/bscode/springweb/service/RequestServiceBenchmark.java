@@ -0,0 +1,63 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Whole scheduleWork pipeline against the loopback stub. The callback-mode
+// benchmark waits until the stub has received the callback, so it covers the
+// worker, archive and callback hops plus the executor hand-offs.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestServiceBenchmark {
+    private LoopbackStub stub;
+    private RequestService service;
+    private final AtomicLong ids = new AtomicLong();
+    private final Request synchronous = new Request(null);
+
+    @Setup
+    public void setup() {
+        stub = new LoopbackStub();
+        SpringWebProperties props = new SpringWebProperties();
+        props.setParamBaseUrl(stub.baseUrl());
+        props.setArchiveBaseUrl(stub.baseUrl());
+        service = new RequestService(props);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+        stub.close();
+    }
+
+    @Benchmark
+    public RequestResult synchronousMode() {
+        return service.scheduleWork(synchronous).block();
+    }
+
+    @Benchmark
+    public String callbackMode() {
+        String id = Long.toString(ids.incrementAndGet());
+        Request request = new Request(stub.expectCallback(id));
+        service.scheduleWork(request).block();
+        return stub.callbackReceived(id).block();
+    }
+}
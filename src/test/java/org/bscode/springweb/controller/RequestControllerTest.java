@@ -0,0 +1,144 @@
+package org.bscode.springweb.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.Deadlines;
+import org.bscode.springweb.service.FaultSimulator;
+import org.bscode.springweb.service.RequestService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class RequestControllerTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SpringWebProperties properties = new SpringWebProperties();
+    private MockWebServer mockWebServer;
+    private RequestService service;
+    private MockMvc mvc;
+
+    @BeforeEach
+    void setupController() {
+        mockWebServer = new MockWebServer();
+        properties.setArchiveBaseUrl(mockWebServer.url("/").url().toString());
+        properties.setParamBaseUrl(mockWebServer.url("/").url().toString());
+        service = new RequestService(properties);
+        mvc = MockMvcBuilders.standaloneSetup(new RequestController(service, properties),
+                new WorkerController(new FaultSimulator(properties))).build();
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        service.shutdown();
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    void bulkWritesOneLinePerResult() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            mockWebServer.enqueue(ok());
+        }
+        String line = mapper.writeValueAsString(new Request(null));
+
+        MvcResult result = mvc.perform(post("/request/bulk")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(line + "\n" + line + "\n"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult(5000);
+
+        assertThat(result.getResponse().getContentType()).isEqualTo(MediaType.APPLICATION_NDJSON_VALUE);
+        assertThat(result.getResponse().getContentAsString()).isEqualTo(
+                "{\"status\":\"OK\"}\n{\"status\":\"OK\"}\n");
+    }
+
+    // The bulk response carries its own timeout rather than the container's async default
+    @Test
+    void bulkUsesItsOwnTimeout() throws Exception {
+        properties.getBulk().setTimeout(Duration.ofMillis(200));
+        mockWebServer.enqueue(ok().setHeadersDelay(1, TimeUnit.SECONDS));
+
+        MvcResult result = mvc.perform(post("/request/bulk")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(mapper.writeValueAsString(new Request(null)) + "\n"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        assertThat(result.getRequest().getAsyncContext().getTimeout()).isEqualTo(200);
+    }
+
+    @Test
+    void tooManyCallbacksAreRefused() throws Exception {
+        properties.getCallbacks().setMaxCallbacks(2);
+        service.shutdown();
+        service = new RequestService(properties);
+        mvc = MockMvcBuilders.standaloneSetup(new RequestController(service, properties)).build();
+        final var req = new Request("http://a.example/cb", List.of("http://b.example/cb", "http://c.example/cb"),
+                null, false, null, 0);
+
+        MvcResult result = mvc.perform(post("/request/")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(req)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().json("{\"status\":\"INVALID\"}"));
+        assertThat(mockWebServer.getRequestCount()).isZero();
+    }
+
+    @Test
+    void malformedCallbackIsRefused() throws Exception {
+        MvcResult result = mvc.perform(post("/request/")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(new Request("not a url"))))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().json("{\"status\":\"INVALID\"}"));
+        assertThat(mockWebServer.getRequestCount()).isZero();
+    }
+
+    // A deadline header that is not a number is the caller's mistake, not a server error
+    @Test
+    void workerRefusesAMalformedDeadline() throws Exception {
+        MvcResult result = mvc.perform(post("/worker")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .header(Deadlines.HEADER, "tomorrow")
+                        .content(mapper.writeValueAsString(new Request(null))))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(result)).andExpect(status().isBadRequest());
+    }
+
+    private MockResponse ok() throws JsonProcessingException {
+        return new MockResponse().setResponseCode(200)
+                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .setBody(mapper.writeValueAsString(new RequestResult("OK")));
+    }
+}
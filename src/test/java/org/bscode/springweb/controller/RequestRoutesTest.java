@@ -0,0 +1,176 @@
+package org.bscode.springweb.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.service.ArchiveDedupe;
+import org.bscode.springweb.service.Deadlines;
+import org.bscode.springweb.service.FaultSimulator;
+import org.bscode.springweb.service.RequestService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// The functional routes of the reactive profile, called the way a client
+// would call the annotated controllers
+class RequestRoutesTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private MockWebServer mockWebServer;
+    private RequestService service;
+    private WebTestClient client;
+
+    @BeforeEach
+    void setupRoutes() {
+        mockWebServer = new MockWebServer();
+        SpringWebProperties properties = new SpringWebProperties();
+        properties.setArchiveBaseUrl(mockWebServer.url("/").url().toString());
+        properties.setParamBaseUrl(mockWebServer.url("/").url().toString());
+        service = new RequestService(properties);
+
+        // The worker stub answers at once rather than after its usual two seconds
+        FaultSimulator simulator = new FaultSimulator(properties);
+        simulator.configure(FaultSimulator.WORKER, new SpringWebProperties.Stub());
+        client = WebTestClient.bindToRouterFunction(new RequestRoutes().routes(service,
+                        new WorkerController(simulator),
+                        new ArchiveController(new ArchiveDedupe(properties, new SimpleMeterRegistry()), simulator),
+                        new EchoController(simulator)))
+                .build();
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        service.shutdown();
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    void requestReturnsTheWorkerResult() throws InterruptedException, JsonProcessingException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200)
+                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .setBody(mapper.writeValueAsString(new RequestResult("OK"))));
+
+        client.post().uri("/request/")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new Request(null))
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_JSON)
+                .expectBody(RequestResult.class).isEqualTo(new RequestResult("OK"));
+
+        RecordedRequest webRequest = mockWebServer.takeRequest(5, TimeUnit.SECONDS);
+        assertThat(webRequest.getPath()).isEqualTo("/worker");
+    }
+
+    // A request whose deadline has already passed is not sent to the worker
+    @Test
+    void expiredRequestIsRefused() {
+        client.post().uri("/request/")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new Request(null, null, false, System.currentTimeMillis() - 1000, 0))
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.GATEWAY_TIMEOUT)
+                .expectBody(RequestResult.class).isEqualTo(new RequestResult("EXPIRED"));
+
+        assertThat(mockWebServer.getRequestCount()).isZero();
+    }
+
+    @Test
+    void bulkAnswersOneResultPerLine() throws JsonProcessingException {
+        for (int i = 0; i < 2; i++) {
+            mockWebServer.enqueue(new MockResponse().setResponseCode(200)
+                    .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                    .setBody(mapper.writeValueAsString(new RequestResult("OK"))));
+        }
+        String line = mapper.writeValueAsString(new Request(null));
+
+        client.post().uri("/request/bulk")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .bodyValue(line + "\n\n" + line + "\nnot json\n")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(RequestResult.class)
+                .isEqualTo(List.of(new RequestResult("OK"), new RequestResult("OK"), new RequestResult("ERROR")));
+    }
+
+    @Test
+    void workerAnswersInTheAcceptedFormat() {
+        client.post().uri("/worker")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new Request(null))
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_JSON)
+                .expectBody(RequestResult.class).isEqualTo(new RequestResult("OK"));
+
+        MediaType smile = SpringWebProperties.WireFormat.SMILE.mediaType();
+        client.post().uri("/worker")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(smile)
+                .bodyValue(new Request(null))
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(smile)
+                .expectBody(RequestResult.class).isEqualTo(new RequestResult("OK"));
+    }
+
+    @Test
+    void workerRefusesAPassedDeadline() {
+        client.post().uri("/worker")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(Deadlines.HEADER, Long.toString(System.currentTimeMillis() - 1000))
+                .bodyValue(new Request(null))
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+    }
+
+    @Test
+    void workerRefusesAMalformedDeadline() {
+        client.post().uri("/worker")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(Deadlines.HEADER, "tomorrow")
+                .bodyValue(new Request(null))
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    void archiveAndEchoAnswerLikeTheControllers() {
+        client.post().uri("/archive")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new RequestResult("OK"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("[BS] Archive complete: OK\n");
+
+        client.post().uri("/archive/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(List.of(new RequestResult("OK"), new RequestResult("ERROR")))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("[BS] Archive complete: 2 results, 0 duplicates\n");
+
+        client.post().uri("/echo/")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new RequestResult("OK"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("[BS] Request complete: OK\n");
+    }
+}
@@ -0,0 +1,99 @@
+package org.bscode.springweb.queue;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bscode.springweb.model.Request;
+import reactor.core.publisher.Mono;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Test double: an in-process stand-in for a broker queue with the same
+// prefetch, ack and redelivery rules as RabbitJobTransport.
+@Slf4j
+public class InMemoryJobTransport implements JobTransport {
+    private final int maxUnacked;
+    private final Queue<Delivery> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unacked = new AtomicInteger();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile Function<Request, Mono<?>> handler;
+
+    public InMemoryJobTransport(int prefetch, int concurrency) {
+        this.maxUnacked = prefetch * concurrency;
+    }
+
+    @Override
+    public void publish(Request req) {
+        ready.offer(new Delivery(req, false));
+        dispatch();
+    }
+
+    @Override
+    public void start(Function<Request, Mono<?>> handler) {
+        this.handler = handler;
+        dispatch();
+    }
+
+    @Override
+    public void stop() {
+        handler = null;
+    }
+
+    public long acked() {
+        return acked.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public int pending() {
+        return ready.size() + unacked.get();
+    }
+
+    private void dispatch() {
+        Function<Request, Mono<?>> current = handler;
+        while (current != null && !ready.isEmpty()) {
+            if (unacked.incrementAndGet() > maxUnacked) {
+                unacked.decrementAndGet();
+                return;
+            }
+            Delivery delivery = ready.poll();
+            if (delivery == null) {
+                unacked.decrementAndGet();
+                return;
+            }
+            current.apply(delivery.request).subscribe(
+                    result -> { },
+                    e -> settle(delivery, e),
+                    () -> settle(delivery, null));
+        }
+    }
+
+    private void settle(Delivery delivery, Throwable error) {
+        if (error == null) {
+            acked.incrementAndGet();
+        } else if (!delivery.redelivered) {
+            log.warn("Job failed, requeueing: {}", error.toString());
+            ready.offer(new Delivery(delivery.request, true));
+        } else {
+            log.error("Job failed after redelivery, rejecting", error);
+            rejected.incrementAndGet();
+        }
+        unacked.decrementAndGet();
+        dispatch();
+    }
+
+    private static class Delivery {
+        final Request request;
+        final boolean redelivered;
+
+        Delivery(Request request, boolean redelivered) {
+            this.request = request;
+            this.redelivered = redelivered;
+        }
+    }
+}
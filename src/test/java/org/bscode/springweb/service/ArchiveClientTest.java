@@ -0,0 +1,96 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.RequestResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class ArchiveClientTest {
+    private MockWebServer mockWebServer;
+    SpringWebProperties properties;
+    ObjectMapper mapper = new ObjectMapper();
+
+    @BeforeEach
+    void setupMockWebServer() {
+        mockWebServer = new MockWebServer();
+
+        properties = new SpringWebProperties();
+        properties.setArchiveBaseUrl(mockWebServer.url("/").url().toString());
+        properties.getArchiveBatch().setEnabled(true);
+        properties.getArchiveBatch().setMaxSize(3);
+        properties.getArchiveBatch().setLinger(Duration.ofSeconds(5));
+    }
+
+    // A full batch goes out as one bulk POST and every caller gets its own result back
+    @Test
+    void batchesResultsIntoOneBulkRequest() throws InterruptedException, JsonProcessingException {
+        final var client = new ArchiveClient(properties, new HttpClientFactory(properties),
+                new DownstreamGuards(properties.getResilience()), new PipelineMetrics(new SimpleMeterRegistry()));
+        final var results = List.of(new RequestResult("OK"), new RequestResult("ERROR"), new RequestResult("OK"));
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{}")
+        );
+
+        final var archived = Flux.fromIterable(results)
+                .flatMap(client::callArchive)
+                .collectList()
+                .block(Duration.ofSeconds(2));
+
+        assertThat(archived).containsExactlyInAnyOrderElementsOf(results);
+        RecordedRequest batchRequest = mockWebServer.takeRequest();
+        assertThat(batchRequest.getPath()).isEqualTo("/archive/batch");
+        assertEquals(3, mapper.readValue(batchRequest.getBody().readUtf8(), RequestResult[].class).length);
+        assertEquals(1, mockWebServer.getRequestCount());
+    }
+
+    // A partial batch is flushed once the linger time runs out
+    @Test
+    void flushesPartialBatchAfterLinger() throws InterruptedException {
+        properties.getArchiveBatch().setLinger(Duration.ofMillis(100));
+        final var client = new ArchiveClient(properties, new HttpClientFactory(properties),
+                new DownstreamGuards(properties.getResilience()), new PipelineMetrics(new SimpleMeterRegistry()));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("{}"));
+
+        final var archived = client.callArchive(new RequestResult("OK")).block(Duration.ofSeconds(2));
+
+        assertEquals(new RequestResult("OK"), archived);
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/archive/batch");
+    }
+
+    // A retry after a failed write sends the same idempotency key; the caller gets its result back without one
+    @Test
+    void retriesKeepTheIdempotencyKey() throws InterruptedException, JsonProcessingException {
+        properties.getArchiveBatch().setEnabled(false);
+        final var client = new ArchiveClient(properties, new HttpClientFactory(properties),
+                new DownstreamGuards(properties.getResilience()), new PipelineMetrics(new SimpleMeterRegistry()));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("archived"));
+        final var result = new RequestResult("OK");
+
+        final var archived = client.callArchive(result).block(Duration.ofSeconds(5));
+
+        assertEquals(result, archived);
+        final var first = mapper.readValue(mockWebServer.takeRequest().getBody().readUtf8(), RequestResult.class);
+        final var retry = mapper.readValue(mockWebServer.takeRequest().getBody().readUtf8(), RequestResult.class);
+        assertNotNull(first.getIdempotencyKey());
+        assertEquals(first.getIdempotencyKey(), retry.getIdempotencyKey());
+    }
+}
@@ -0,0 +1,66 @@
+package org.bscode.springweb.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveDedupeTest {
+    private final SpringWebProperties properties = new SpringWebProperties();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setup() {
+        properties.getArchiveDedupe().setExpectedKeys(1000);
+    }
+
+    @Test
+    void repeatedKeyIsOnlyStoredOnce() {
+        final var dedupe = new ArchiveDedupe(properties, registry);
+
+        assertTrue(dedupe.firstSeen("a"));
+        assertTrue(dedupe.firstSeen("b"));
+        assertFalse(dedupe.firstSeen("a"));
+        assertTrue(dedupe.firstSeen(null));
+        assertTrue(dedupe.firstSeen(null));
+
+        assertEquals(1.0, duplicates("exact"));
+        assertEquals(2, dedupe.size());
+    }
+
+    // Keys the exact cache had to drop for size are still caught by the filter
+    @Test
+    void filterCatchesKeysDroppedFromTheExactCache() {
+        properties.getArchiveDedupe().setExactKeys(10);
+        final var dedupe = new ArchiveDedupe(properties, registry);
+        IntStream.range(0, 100).forEach(i -> assertTrue(dedupe.firstSeen("key-" + i)));
+
+        assertFalse(dedupe.firstSeen("key-0"));
+
+        assertEquals(1.0, duplicates("probable"));
+        assertEquals(11, dedupe.size());
+    }
+
+    // With nothing dropped for size, a filter hit can only be a false positive and the write is stored
+    @Test
+    void filterHitIsStoredWhileTheExactCacheHoldsTheWholeWindow() {
+        properties.getArchiveDedupe().setExpectedKeys(1);
+        properties.getArchiveDedupe().setFalsePositiveRate(0.5);
+        final var dedupe = new ArchiveDedupe(properties, registry);
+
+        IntStream.range(0, 500).forEach(i -> assertTrue(dedupe.firstSeen("key-" + i)));
+
+        assertEquals(0.0, duplicates("probable"));
+        assertTrue(registry.get("springweb.archive.dedupe.unconfirmed").counter().count() > 0);
+    }
+
+    private double duplicates(String match) {
+        return registry.get("springweb.archive.duplicates").tag("match", match).counter().count();
+    }
+}
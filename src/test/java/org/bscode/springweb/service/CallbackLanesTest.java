@@ -0,0 +1,59 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CallbackLanesTest {
+    private final SpringWebProperties.Callbacks props = new SpringWebProperties().getCallbacks();
+
+    // A host at its cap queues its own deliveries and turns away more, while other hosts go straight through
+    @Test
+    void slowHostOnlyBacksUpItsOwnLane() {
+        props.setConcurrencyPerHost(1);
+        props.setQueuePerHost(1);
+        final var lanes = new CallbackLanes(props);
+        final var started = new AtomicInteger();
+        final List<Sinks.One<String>> slow = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final Sinks.One<String> answer = Sinks.one();
+            slow.add(answer);
+            lanes.submit("slow:80", answer.asMono().doOnSubscribe(s -> started.incrementAndGet())).subscribe();
+        }
+
+        assertEquals(1, started.get());
+        assertThatThrownBy(() -> lanes.submit("slow:80", Mono.just("x")).block())
+                .isInstanceOf(DownstreamRejectedException.class);
+        assertEquals("fast", lanes.submit("fast:80", Mono.just("fast")).block());
+
+        slow.get(0).tryEmitValue("one");
+        assertEquals(2, started.get());
+        slow.get(1).tryEmitValue("two");
+        assertEquals(0, lanes.lanes());
+    }
+
+    // A queued delivery that is cancelled gives up its place without ever starting
+    @Test
+    void cancelledDeliveryLeavesTheQueue() {
+        props.setConcurrencyPerHost(1);
+        final var lanes = new CallbackLanes(props);
+        final Sinks.One<String> first = Sinks.one();
+        final var started = new AtomicInteger();
+        lanes.submit("h:80", first.asMono()).subscribe();
+        final var queued = lanes.submit("h:80", Mono.fromCallable(started::incrementAndGet)).subscribe();
+
+        queued.dispose();
+        first.tryEmitValue("done");
+
+        assertEquals(0, started.get());
+        assertEquals(0, lanes.lanes());
+    }
+}
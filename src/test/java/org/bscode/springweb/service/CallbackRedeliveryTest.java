@@ -0,0 +1,181 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.JobState;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CallbackRedeliveryTest {
+    @TempDir
+    Path dir;
+    private MockWebServer mockWebServer;
+    private RequestService service;
+    private JobStore jobs;
+    private final SpringWebProperties properties = new SpringWebProperties();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @BeforeEach
+    void setup() {
+        mockWebServer = new MockWebServer();
+        properties.setArchiveBaseUrl(mockWebServer.url("/").url().toString());
+        properties.setParamBaseUrl(mockWebServer.url("/").url().toString());
+        properties.getRedelivery().setEnabled(true);
+        properties.getRedelivery().setInitialBackoff(Duration.ofMillis(20));
+        properties.getRedelivery().setTick(Duration.ofMillis(10));
+        properties.getRedelivery().setDir(dir.toString());
+        jobs = new JobStore(properties);
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        if (service != null) {
+            service.shutdown();
+        }
+        mockWebServer.shutdown();
+    }
+
+    // Callbacks failing with a 5xx are retried in the background until one gets through
+    @Test
+    void failedCallbackIsRetriedUntilDelivered() throws Exception {
+        service = startService();
+        enqueueResult(200, 200, 500, 503, 200);
+
+        final var completed = jobs.completions().next().toFuture();
+        final var jobId = service.scheduleWork(new Request(properties.getArchiveBaseUrl() + "callback"))
+                .block().getJobId();
+
+        final var status = completed.get(5, TimeUnit.SECONDS);
+        assertEquals(jobId, status.getJobId());
+        assertEquals(JobState.COMPLETED, status.getState());
+        assertEquals(5, mockWebServer.getRequestCount());
+        assertEquals(0, service.redelivery.pending());
+        service.shutdown();
+        service = null;
+        assertThat(new RedeliveryJournal(dir, 100).replay()).isEmpty();
+    }
+
+    // A delivery that uses up its attempts fails the job and lands in the dead-letter file
+    @Test
+    void exhaustedDeliveryIsDeadLettered() throws Exception {
+        properties.getRedelivery().setMaxAttempts(3);
+        service = startService();
+        enqueueResult(200, 200, 500, 500, 500);
+
+        final var failed = jobs.completions().next().toFuture();
+        final var jobId = service.scheduleWork(new Request(properties.getArchiveBaseUrl() + "callback"))
+                .block().getJobId();
+
+        final var status = failed.get(5, TimeUnit.SECONDS);
+        assertEquals(JobState.FAILED, status.getState());
+        service.shutdown();
+        service = null;
+        final List<String> deadLetters = Files.readAllLines(dir.resolve(RedeliveryJournal.DEAD_LETTERS));
+        assertEquals(1, deadLetters.size());
+        assertThat(deadLetters.get(0)).contains(jobId).contains("\"attempts\":3");
+    }
+
+    // Only 5xx, timeout and I/O failures are worth another attempt; anything else fails the delivery at once
+    @Test
+    void onlyTransientFailuresAreRetried() throws Exception {
+        assertThat(CallbackRedelivery.retryable(WebClientResponseException.create(503, "", null, null, null))).isTrue();
+        assertThat(CallbackRedelivery.retryable(new IOException("reset"))).isTrue();
+        assertThat(CallbackRedelivery.retryable(new TimeoutException())).isTrue();
+        assertThat(CallbackRedelivery.retryable(WebClientResponseException.create(302, "", null, null, null))).isFalse();
+        assertThat(CallbackRedelivery.retryable(new DownstreamRejectedException("open"))).isFalse();
+        assertThat(CallbackRedelivery.retryable(new IllegalArgumentException("bad uri"))).isFalse();
+        assertThat(CallbackRedelivery.retryable(new DeadlineExceededException("late"))).isFalse();
+
+        service = startService();
+        enqueueResult(200, 200, 503, 302);
+
+        final var failed = jobs.completions().next().toFuture();
+        service.scheduleWork(new Request(properties.getArchiveBaseUrl() + "callback")).block();
+
+        final var status = failed.get(5, TimeUnit.SECONDS);
+        assertEquals(JobState.FAILED, status.getState());
+        assertEquals(4, mockWebServer.getRequestCount());
+        assertEquals(0, service.redelivery.pending());
+    }
+
+    // Deliveries left in the journal by a previous run are picked up at start
+    @Test
+    void pendingDeliveriesResumeFromJournal() throws Exception {
+        final var journal = new RedeliveryJournal(dir, 100);
+        journal.replay();
+        journal.scheduled(new CallbackDelivery("d1", properties.getArchiveBaseUrl() + "callback",
+                new RequestResult("OK", "job-1"), 2, System.currentTimeMillis(), null));
+        journal.scheduled(new CallbackDelivery("d2", properties.getArchiveBaseUrl() + "callback",
+                new RequestResult("OK", "job-2"), 1, System.currentTimeMillis(), null));
+        journal.finished("d2", List::of);
+        journal.close();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("done"));
+
+        final var completed = jobs.completions().next().toFuture();
+        service = startService();
+
+        final var status = completed.get(5, TimeUnit.SECONDS);
+        assertEquals("job-1", status.getJobId());
+        assertEquals(JobState.COMPLETED, status.getState());
+        assertEquals("/callback", mockWebServer.takeRequest().getPath());
+    }
+
+    @Test
+    void backoffDoublesUpToTheCapWithJitterBelow() {
+        properties.getRedelivery().setInitialBackoff(Duration.ofSeconds(1));
+        properties.getRedelivery().setMaxBackoff(Duration.ofSeconds(5));
+        final var redelivery = new CallbackRedelivery(properties.getRedelivery(), null, jobs,
+                new PipelineMetrics(new SimpleMeterRegistry()));
+
+        assertThat(redelivery.backoff(1)).isBetween(500L, 1000L);
+        assertThat(redelivery.backoff(2)).isBetween(1000L, 2000L);
+        assertThat(redelivery.backoff(3)).isBetween(2000L, 4000L);
+        assertThat(redelivery.backoff(50)).isBetween(2500L, 5000L);
+        redelivery.dispose();
+    }
+
+    // The journal must not depend on the working directory the node was started from
+    @Test
+    void journalDirectoryMustBeAbsolute() {
+        properties.getRedelivery().setDir("data/redelivery");
+        assertThatThrownBy(this::startService).hasMessageContaining("absolute");
+
+        properties.getRedelivery().setDir(null);
+        assertThatThrownBy(this::startService).hasMessageContaining("must be set");
+    }
+
+    private RequestService startService() {
+        return new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+    }
+
+    private void enqueueResult(int... codes) throws JsonProcessingException {
+        for (int code : codes) {
+            mockWebServer.enqueue(new MockResponse().setResponseCode(code)
+                    .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                    .setBody(mapper.writeValueAsString(new RequestResult("OK"))));
+        }
+    }
+}
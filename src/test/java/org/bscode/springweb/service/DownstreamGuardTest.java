@@ -0,0 +1,117 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownstreamGuardTest {
+    SpringWebProperties.Resilience props;
+
+    @BeforeEach
+    void setupProperties() {
+        props = new SpringWebProperties().getResilience();
+        props.setWindowSize(10);
+        props.setMinimumCalls(4);
+        props.setOpenDuration(Duration.ofMillis(100));
+        props.setHalfOpenProbes(2);
+    }
+
+    @Test
+    void breakerOpensAndRejectsWithoutCallingDownstream() {
+        final var guard = new DownstreamGuard("worker:80", props);
+        final var calls = new AtomicInteger();
+        final Mono<String> failing = Mono.defer(() -> {
+            calls.incrementAndGet();
+            return Mono.error(new IllegalStateException("down"));
+        });
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> guard.protect(failing).block()).isInstanceOf(IllegalStateException.class);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, guard.breaker().state());
+        assertThatThrownBy(() -> guard.protect(failing).block()).isInstanceOf(DownstreamRejectedException.class);
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    void breakerClosesAfterSuccessfulProbes() throws InterruptedException {
+        final var guard = new DownstreamGuard("worker:80", props);
+        for (int i = 0; i < 4; i++) {
+            guard.protect(Mono.error(new IllegalStateException("down"))).onErrorResume(e -> Mono.empty()).block();
+        }
+        Thread.sleep(150);
+
+        assertEquals("OK", guard.protect(Mono.just("OK")).block());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, guard.breaker().state());
+        assertEquals("OK", guard.protect(Mono.just("OK")).block());
+        assertEquals(CircuitBreaker.State.CLOSED, guard.breaker().state());
+    }
+
+    @Test
+    void limiterShrinksOnFailureAndRejectsAboveLimit() {
+        props.setInitialLimit(2);
+        final var limiter = new AimdLimiter(props);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        limiter.onFailure();
+        limiter.release();
+        limiter.release();
+        assertEquals(1, limiter.limit());
+    }
+
+    @Test
+    void retryBudgetCapsRetriesToRatioOfRequests() {
+        props.setRetryRatio(0.1);
+        props.setMinRetriesPerSecond(0);
+        final var budget = new RetryBudget(props);
+        for (int i = 0; i < 100; i++) {
+            budget.onRequest();
+        }
+
+        int retries = 0;
+        while (budget.tryRetry()) {
+            retries++;
+        }
+        assertEquals(10, retries);
+    }
+
+    @Test
+    void defaultPortsShareAGuard() {
+        final var guards = new DownstreamGuards(props);
+
+        assertEquals("worker:80", DownstreamGuards.destination("http://worker/worker"));
+        assertEquals("worker:443", DownstreamGuards.destination("https://worker/worker"));
+        assertTrue(guards.guard("http://worker/a") == guards.guard("http://worker:80/b"));
+    }
+
+    // Past the cap idle guards are dropped; busy ones stay and newcomers share the overflow guard
+    @Test
+    void guardsAreCappedPerDestination() {
+        props.setMaxDestinations(2);
+        final var guards = new DownstreamGuards(props);
+        final var busy = guards.guard("http://a/");
+        assertTrue(busy.limiter().tryAcquire());
+        guards.guard("http://b/");
+
+        final var c = guards.guard("http://c/");
+        assertEquals(2, guards.size());
+        assertTrue(busy == guards.guard("http://a/"));
+        assertTrue(c == guards.guard("http://c/"));
+
+        assertTrue(c.limiter().tryAcquire());
+        final var overflow = guards.guard("http://d/");
+        assertTrue(overflow == guards.guard("http://e/"));
+        assertEquals(2, guards.size());
+    }
+}
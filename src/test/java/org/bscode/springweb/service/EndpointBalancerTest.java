@@ -0,0 +1,98 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EndpointBalancerTest {
+    private static final String A = "http://worker-a:8080";
+    private static final String B = "http://worker-b:8080";
+
+    SpringWebProperties.Balancing props;
+    EndpointBalancer balancer;
+    final AtomicBoolean healthy = new AtomicBoolean();
+
+    @BeforeEach
+    void setupProperties() {
+        props = new SpringWebProperties().getBalancing();
+        props.setConsecutiveFailures(2);
+        props.setProbeInterval(Duration.ofMillis(50));
+    }
+
+    @AfterEach
+    void disposeBalancer() {
+        balancer.dispose();
+    }
+
+    private Mono<?> probe(String url) {
+        return healthy.get() ? Mono.just(url) : Mono.error(new IOException("down"));
+    }
+
+    private EndpointBalancer.Endpoint endpoint(String url) {
+        return balancer.endpoints().stream().filter(e -> e.url.equals(url)).findFirst().orElseThrow();
+    }
+
+    @Test
+    void callsGoToTheEndpointWithFewerOutstanding() {
+        balancer = new EndpointBalancer(A + ", " + B, props, this::probe);
+        final Sinks.One<String> held = Sinks.one();
+        final var first = new StringBuilder();
+        balancer.call(url -> {
+            first.append(url);
+            return held.asMono();
+        }).subscribe();
+
+        final var second = balancer.call(Mono::just).block();
+
+        assertNotEquals(first.toString(), second);
+        held.tryEmitValue("done");
+        assertEquals(0, endpoint(A).outstanding() + endpoint(B).outstanding());
+    }
+
+    @Test
+    void failingEndpointIsEjectedUntilProbeSucceeds() throws InterruptedException {
+        balancer = new EndpointBalancer(A + "," + B, props, this::probe);
+        for (int i = 0; i < 50 && !endpoint(A).ejected(); i++) {
+            balancer.call(url -> url.equals(A) ? Mono.error(new IOException("reset")) : Mono.just(url))
+                    .onErrorResume(e -> Mono.empty())
+                    .block();
+        }
+        assertTrue(endpoint(A).ejected());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(B, balancer.call(Mono::just).block());
+        }
+
+        Thread.sleep(150);
+        assertTrue(endpoint(A).ejected());
+        healthy.set(true);
+        for (int i = 0; i < 20 && endpoint(A).ejected(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(endpoint(A).ejected());
+    }
+
+    // With two endpoints the default 50% cap ejects at most one of them
+    @Test
+    void ejectionIsCappedToAShareOfEndpoints() {
+        balancer = new EndpointBalancer(A + "," + B, props, this::probe);
+        for (int i = 0; i < 20; i++) {
+            balancer.call(url -> Mono.error(new IOException("reset")))
+                    .onErrorResume(e -> Mono.empty())
+                    .block();
+        }
+
+        assertEquals(1, (endpoint(A).ejected() ? 1 : 0) + (endpoint(B).ejected() ? 1 : 0));
+    }
+}
@@ -0,0 +1,91 @@
+package org.bscode.springweb.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FairQueueTest {
+    private final FairQueue<String> queue =
+            new FairQueue<>(Comparator.<String>naturalOrder(), task -> task.startsWith("!") ? 1 : 0);
+
+    // A tenant with a deep backlog does not hold back one that queues later
+    @Test
+    void tenantsTakeTurnsWhateverTheirBacklog() {
+        for (int i = 0; i < 5; i++) {
+            queue.offer("noisy", 1, "n" + i);
+        }
+        queue.offer("quiet", 1, "q0");
+        queue.offer("quiet", 1, "q1");
+
+        assertEquals(List.of("n0", "q0", "n1", "q1", "n2", "n3", "n4"), drain());
+        assertEquals(0, queue.tenants());
+    }
+
+    @Test
+    void turnsFollowWeights() {
+        for (int i = 0; i < 6; i++) {
+            queue.offer("gold", 2, "g" + i);
+            queue.offer("basic", 1, "b" + i);
+        }
+
+        List<String> first = drain().subList(0, 6);
+        assertEquals(4, first.stream().filter(task -> task.startsWith("g")).count());
+    }
+
+    // Priority goes first across tenants; within a tenant the given order holds
+    @Test
+    void priorityBeatsFairness() {
+        queue.offer("a", 1, "a2");
+        queue.offer("a", 1, "a1");
+        queue.offer("b", 1, "b1");
+        queue.offer("b", 1, "!b2");
+
+        assertEquals(List.of("!b2", "a1", "a2", "b1"), drain());
+    }
+
+    // Integer.MIN_VALUE cannot be negated, so it must still go after every other priority
+    @Test
+    void extremePrioritiesKeepTheirOrder() {
+        final var extremes = new FairQueue<String>(Comparator.naturalOrder(),
+                task -> task.equals("min") ? Integer.MIN_VALUE : task.equals("max") ? Integer.MAX_VALUE : 0);
+        extremes.offer("a", 1, "min");
+        extremes.offer("b", 1, "zero");
+        extremes.offer("c", 1, "max");
+
+        assertEquals("max", extremes.poll());
+        assertEquals("zero", extremes.poll());
+        assertEquals("min", extremes.poll());
+    }
+
+    // A tenant that was idle comes back at the current virtual time instead of catching up
+    @Test
+    void idleTenantDoesNotBankTurns() {
+        queue.offer("busy", 1, "x0");
+        queue.offer("busy", 1, "x1");
+        queue.offer("busy", 1, "x2");
+        queue.offer("busy", 1, "x3");
+        queue.poll();
+        queue.poll();
+        queue.offer("back", 1, "y0");
+        queue.offer("back", 1, "y1");
+        queue.offer("back", 1, "y2");
+
+        assertEquals(List.of("x2", "y0", "x3", "y1", "y2"), drain());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    private List<String> drain() {
+        List<String> out = new ArrayList<>();
+        for (String task = queue.poll(); task != null; task = queue.poll()) {
+            out.add(task);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,135 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FaultSimulatorTest {
+    private static final int SAMPLES = 20000;
+
+    // Without settings the stubs answer as they always have: the worker after two seconds, the rest at once
+    @Test
+    void defaultsKeepTheStubsAsTheyWere() {
+        FaultSimulator simulator = new FaultSimulator(new SpringWebProperties());
+
+        assertThat(LongStream.of(samples(simulator, FaultSimulator.WORKER)).distinct()).containsExactly(Duration.ofSeconds(2).toNanos());
+        assertThat(LongStream.of(samples(simulator, FaultSimulator.ARCHIVE)).distinct()).containsExactly(0L);
+        assertThat(simulator.behaviour(FaultSimulator.ECHO).status()).isZero();
+        assertThat(simulator.behaviour(FaultSimulator.ECHO).transport()).isEqualTo(FaultSimulator.Transport.NORMAL);
+    }
+
+    @Test
+    void latencyFollowsTheDistribution() {
+        FaultSimulator simulator = new FaultSimulator(new SpringWebProperties());
+        SpringWebProperties.Stub stub = new SpringWebProperties.Stub();
+        SpringWebProperties.Latency latency = stub.getLatency();
+
+        latency.setDistribution(SpringWebProperties.LatencyDistribution.UNIFORM);
+        latency.setMin(Duration.ofMillis(10));
+        latency.setMax(Duration.ofMillis(20));
+        simulator.configure(FaultSimulator.WORKER, stub);
+        long[] uniform = samples(simulator, FaultSimulator.WORKER);
+        assertThat(LongStream.of(uniform).min().getAsLong()).isGreaterThanOrEqualTo(Duration.ofMillis(10).toNanos());
+        assertThat(LongStream.of(uniform).max().getAsLong()).isLessThanOrEqualTo(Duration.ofMillis(20).toNanos());
+
+        latency.setDistribution(SpringWebProperties.LatencyDistribution.LOG_NORMAL);
+        latency.setMedian(Duration.ofMillis(50));
+        latency.setSigma(1);
+        simulator.configure(FaultSimulator.WORKER, stub);
+        long[] logNormal = samples(simulator, FaultSimulator.WORKER);
+        assertThat(quantile(logNormal, 0.5)).isBetween(Duration.ofMillis(45).toNanos(), Duration.ofMillis(55).toNanos());
+        // e^(1.645 sigma) above the median at p95
+        assertThat(quantile(logNormal, 0.95)).isBetween(Duration.ofMillis(220).toNanos(), Duration.ofMillis(300).toNanos());
+
+        latency.setDistribution(SpringWebProperties.LatencyDistribution.BIMODAL);
+        latency.setMedian(Duration.ofMillis(5));
+        latency.setSigma(0.1);
+        latency.setSlowMedian(Duration.ofSeconds(1));
+        latency.setSlowRatio(0.1);
+        simulator.configure(FaultSimulator.WORKER, stub);
+        long slow = LongStream.of(samples(simulator, FaultSimulator.WORKER))
+                .filter(n -> n > Duration.ofMillis(500).toNanos())
+                .count();
+        assertThat((double) slow / SAMPLES).isBetween(0.08, 0.12);
+    }
+
+    @Test
+    void errorsAndTransportFaultsComeAtTheirRates() {
+        FaultSimulator simulator = new FaultSimulator(new SpringWebProperties());
+        SpringWebProperties.Stub stub = new SpringWebProperties.Stub();
+        stub.setErrors(Map.of(503, 0.2, 500, 0.1));
+        stub.setResetRate(0.05);
+        stub.setSlowBodyRate(0.15);
+        simulator.configure(FaultSimulator.ARCHIVE, stub);
+        FaultSimulator.Behaviour behaviour = simulator.behaviour(FaultSimulator.ARCHIVE);
+
+        int[] statuses = new int[600];
+        int[] transports = new int[FaultSimulator.Transport.values().length];
+        for (int i = 0; i < SAMPLES; i++) {
+            statuses[behaviour.status()]++;
+            transports[behaviour.transport().ordinal()]++;
+        }
+        assertThat((double) statuses[503] / SAMPLES).isBetween(0.18, 0.22);
+        assertThat((double) statuses[500] / SAMPLES).isBetween(0.08, 0.12);
+        assertThat((double) statuses[0] / SAMPLES).isBetween(0.68, 0.72);
+        assertThat((double) transports[FaultSimulator.Transport.RESET.ordinal()] / SAMPLES).isBetween(0.04, 0.06);
+        assertThat((double) transports[FaultSimulator.Transport.SLOW_BODY.ordinal()] / SAMPLES).isBetween(0.13, 0.17);
+    }
+
+    @Test
+    void answerFailsWithTheSampledStatusAfterTheLatency() {
+        FaultSimulator simulator = new FaultSimulator(new SpringWebProperties());
+        SpringWebProperties.Stub stub = new SpringWebProperties.Stub();
+        stub.getLatency().setFixed(Duration.ofMillis(100));
+        stub.setErrors(Map.of(429, 1.0));
+        simulator.configure(FaultSimulator.ECHO, stub);
+
+        long start = System.nanoTime();
+        StepVerifier.create(simulator.answer(FaultSimulator.ECHO, Mono.just("done")))
+                .expectErrorSatisfies(e -> assertThat(((ResponseStatusException) e).getRawStatusCode()).isEqualTo(429))
+                .verify(Duration.ofSeconds(5));
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(Duration.ofMillis(100).toNanos());
+    }
+
+    // Invalid settings are refused whole and the stub keeps answering as before
+    @Test
+    void invalidSettingsAreRefused() {
+        FaultSimulator simulator = new FaultSimulator(new SpringWebProperties());
+        SpringWebProperties.Stub stub = new SpringWebProperties.Stub();
+        stub.setErrors(Map.of(503, 0.6, 500, 0.6));
+
+        assertThatThrownBy(() -> simulator.configure(FaultSimulator.WORKER, stub))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> simulator.configure("nope", new SpringWebProperties.Stub()))
+                .isInstanceOf(IllegalArgumentException.class);
+        stub.setErrors(Map.of(200, 0.1));
+        assertThatThrownBy(() -> simulator.configure(FaultSimulator.WORKER, stub))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(LongStream.of(samples(simulator, FaultSimulator.WORKER)).distinct()).containsExactly(Duration.ofSeconds(2).toNanos());
+    }
+
+    private static long[] samples(FaultSimulator simulator, String stub) {
+        FaultSimulator.Behaviour behaviour = simulator.behaviour(stub);
+        long[] samples = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = behaviour.latencyNanos();
+        }
+        return samples;
+    }
+
+    private static long quantile(long[] samples, double q) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) (q * (sorted.length - 1))];
+    }
+}
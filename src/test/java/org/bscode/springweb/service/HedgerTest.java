@@ -0,0 +1,109 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HedgerTest {
+    SpringWebProperties.Hedging props;
+    final AtomicInteger attempts = new AtomicInteger();
+    final AtomicInteger cancelled = new AtomicInteger();
+    final AtomicInteger hedges = new AtomicInteger();
+
+    @BeforeEach
+    void setupProperties() {
+        props = new SpringWebProperties().getHedging();
+        props.setDelay(Duration.ofMillis(50));
+        props.setMaxRatio(1.0);
+    }
+
+    // The first attempt is slow, the hedge answers fast
+    private Mono<String> call() {
+        return Mono.defer(() -> {
+            int attempt = attempts.incrementAndGet();
+            Duration latency = attempt == 1 ? Duration.ofSeconds(2) : Duration.ofMillis(10);
+            return Mono.just("attempt " + attempt).delayElement(latency).doOnCancel(cancelled::incrementAndGet);
+        });
+    }
+
+    @Test
+    void slowCallIsHedgedAndLoserCancelled() {
+        final var hedger = new Hedger(props, hedges::incrementAndGet);
+
+        final var result = hedger.hedge(this::call).block(Duration.ofSeconds(1));
+
+        assertEquals("attempt 2", result);
+        assertEquals(2, attempts.get());
+        assertEquals(1, cancelled.get());
+        assertEquals(1, hedges.get());
+    }
+
+    // A failed attempt does not win the race; the error only surfaces when both fail
+    @Test
+    void failedAttemptDoesNotWin() {
+        final var hedger = new Hedger(props, hedges::incrementAndGet);
+
+        final var result = hedger.hedge(() -> attempts.incrementAndGet() == 1
+                ? Mono.<String>error(new IllegalStateException("first"))
+                : Mono.just("second")).block(Duration.ofSeconds(1));
+        assertEquals("second", result);
+
+        attempts.set(0);
+        final var error = assertThrows(IllegalStateException.class, () -> hedger.hedge(() ->
+                Mono.<String>error(new IllegalStateException("attempt " + attempts.incrementAndGet())))
+                .block(Duration.ofSeconds(1)));
+        assertEquals("attempt 1", error.getMessage());
+        assertEquals(2, attempts.get());
+    }
+
+    // Without budget for a hedge, the first attempt's error is the answer
+    @Test
+    void failureWithoutHedgeKeepsItsError() {
+        props.setMaxRatio(0);
+        final var hedger = new Hedger(props, hedges::incrementAndGet);
+
+        final var error = assertThrows(IllegalStateException.class, () -> hedger.hedge(() ->
+                Mono.<String>error(new IllegalStateException("only"))).block(Duration.ofSeconds(1)));
+        assertEquals("only", error.getMessage());
+        assertEquals(0, hedges.get());
+    }
+
+    @Test
+    void hedgesAreCappedByTheBudget() {
+        props.setMaxRatio(0.5);
+        final var hedger = new Hedger(props, hedges::incrementAndGet);
+
+        hedger.hedge(() -> Mono.just("fast")).block();
+        final var result = hedger.hedge(this::call).block(Duration.ofSeconds(1));
+        assertEquals("attempt 2", result);
+
+        attempts.set(0);
+        final var unhedged = hedger.hedge(this::call).block(Duration.ofSeconds(3));
+        assertEquals("attempt 1", unhedged);
+        assertEquals(1, hedges.get());
+    }
+
+    @Test
+    void delayFollowsRecentLatencyPercentile() {
+        props.setDelay(null);
+        props.setSamples(10);
+        props.setPercentile(0.9);
+        props.setMinDelay(Duration.ZERO);
+        final var hedger = new Hedger(props, hedges::incrementAndGet);
+        assertNull(hedger.delay());
+
+        for (int ms = 1; ms <= 10; ms++) {
+            hedger.record(Duration.ofMillis(ms).toNanos());
+        }
+
+        assertEquals(Duration.ofMillis(9), hedger.delay());
+    }
+}
@@ -0,0 +1,98 @@
+package org.bscode.springweb.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.bscode.springweb.model.RequestResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HttpClientFactoryTest {
+    private static final String STREAM_ID = "x-http2-stream-id";
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SpringWebProperties properties = new SpringWebProperties();
+    private MockWebServer mockWebServer;
+    private HttpClientFactory clients;
+
+    // The mock server only speaks HTTP/2 without an upgrade, so an HTTP/1.1 request would fail
+    @BeforeEach
+    void setupH2cServer() throws IOException {
+        mockWebServer = new MockWebServer();
+        mockWebServer.setProtocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+        mockWebServer.start();
+        properties.getHttp2().setEnabled(true);
+        properties.getHttp2().setPriorKnowledge(true);
+        properties.setParamBaseUrl(mockWebServer.url("/").toString());
+        properties.setArchiveBaseUrl(mockWebServer.url("/").toString());
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        if (clients != null) {
+            clients.dispose();
+        }
+        mockWebServer.shutdown();
+    }
+
+    // Reactor Netty maps HTTP/2 responses onto HTTP/1.1 objects and marks them with their stream id
+    @Test
+    void priorKnowledgeSpeaksH2cFromTheFirstRequest() {
+        clients = new HttpClientFactory(properties);
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("ok"));
+
+        HttpHeaders headers = clients.httpClient(properties.getParamClient(), clients.transportFor(properties.getParamBaseUrl()))
+                .get()
+                .uri(mockWebServer.url("/").toString())
+                .responseSingle((response, body) -> body.then(Mono.fromSupplier(() -> {
+                    HttpHeaders copy = new HttpHeaders();
+                    response.responseHeaders().forEach(h -> copy.add(h.getKey(), h.getValue()));
+                    return copy;
+                })))
+                .block();
+
+        assertThat(headers.getFirst(STREAM_ID)).isNotNull();
+    }
+
+    @Test
+    void workerCallsGoOverH2c() throws InterruptedException, JsonProcessingException {
+        clients = new HttpClientFactory(properties);
+        RequestService service = new RequestService(properties, clients, null,
+                new SimpleMeterRegistry(), new JobStore(properties));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200)
+                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .setBody(mapper.writeValueAsString(new RequestResult("OK"))));
+
+        assertEquals(new RequestResult("OK"), service.scheduleWork(new Request(null)).block());
+
+        RecordedRequest recorded = mockWebServer.takeRequest(5, TimeUnit.SECONDS);
+        assertThat(recorded.getPath()).isEqualTo("/worker");
+        service.shutdown();
+    }
+
+    @Test
+    void http11HostsStayOnHttp11() {
+        properties.getHttp2().getHttp11Hosts().add("legacy.internal");
+        clients = new HttpClientFactory(properties);
+
+        assertEquals(HttpClientFactory.Transport.HTTP11, clients.transportFor("http://legacy.internal:8080/"));
+        assertEquals(HttpClientFactory.Transport.H2C, clients.transportFor("http://worker.internal:8080/"));
+        assertEquals(HttpClientFactory.Transport.H2, clients.transportFor("https://worker.internal/"));
+    }
+}
@@ -0,0 +1,112 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.DeliveryOutcome;
+import org.bscode.springweb.model.DeliveryState;
+import org.bscode.springweb.model.JobState;
+import org.bscode.springweb.model.JobStatus;
+import org.bscode.springweb.model.RequestResult;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JobStoreTest {
+    private final SpringWebProperties properties = new SpringWebProperties();
+
+    @Test
+    void oldestJobsAreEvictedPastMaxJobs() {
+        properties.getJobs().setMaxJobs(2);
+        final var jobs = new JobStore(properties);
+
+        final var first = jobs.create();
+        final var second = jobs.create();
+        final var third = jobs.create();
+
+        assertThat(jobs.get(first)).isEmpty();
+        assertThat(jobs.get(second)).isPresent();
+        assertThat(jobs.get(third)).isPresent();
+        assertEquals(2, jobs.size());
+    }
+
+    // A removed job frees its place, and the rest are still evicted oldest first
+    @Test
+    void removedJobsLeaveTheOrderIntact() {
+        properties.getJobs().setMaxJobs(2);
+        final var jobs = new JobStore(properties);
+
+        final var first = jobs.create();
+        final var second = jobs.create();
+        jobs.remove(second);
+        jobs.remove(second);
+        final var third = jobs.create();
+
+        assertEquals(2, jobs.size());
+        assertThat(jobs.get(first)).isPresent();
+        assertThat(jobs.get(second)).isEmpty();
+
+        final var fourth = jobs.create();
+        assertThat(jobs.get(first)).isEmpty();
+        assertThat(jobs.get(third)).isPresent();
+        assertThat(jobs.get(fourth)).isPresent();
+        assertEquals(2, jobs.size());
+    }
+
+    @Test
+    void expiredJobsAreNotReturned() throws InterruptedException {
+        properties.getJobs().setTtl(Duration.ofMillis(50));
+        final var jobs = new JobStore(properties);
+
+        final var jobId = jobs.create();
+        Thread.sleep(100);
+
+        assertThat(jobs.get(jobId)).isEmpty();
+        jobs.create();
+        assertEquals(1, jobs.size());
+    }
+
+    // Only terminal states reach the completion feed
+    @Test
+    void completionsCarryFinishedJobs() {
+        final var jobs = new JobStore(properties);
+        final var received = new ArrayList<JobStatus>();
+        jobs.completions().subscribe(received::add);
+
+        final var jobId = jobs.create();
+        jobs.advance(jobId, JobState.ARCHIVE, new RequestResult("OK", jobId));
+        jobs.deliveriesStarted(jobId, List.of("a"), new RequestResult("OK", jobId));
+        assertEquals(0, received.size());
+        jobs.delivered(jobId, "a", "done");
+
+        assertEquals(1, received.size());
+        assertEquals(JobState.COMPLETED, received.get(0).getState());
+        assertEquals(new RequestResult("OK", jobId), received.get(0).getResult());
+        assertEquals(List.of(received.get(0)), List.of(jobs.get(jobId).orElseThrow()));
+    }
+
+    // A job with several callback targets finishes once each has a final outcome
+    @Test
+    void deliveriesFinishTheJobTogether() {
+        final var jobs = new JobStore(properties);
+        final var received = new ArrayList<JobStatus>();
+        jobs.completions().subscribe(received::add);
+        final var jobId = jobs.create();
+
+        jobs.deliveriesStarted(jobId, List.of("a", "b"), new RequestResult("OK", jobId));
+        jobs.delivered(jobId, "a", "done");
+        jobs.redelivering(jobId, "b");
+        assertEquals(JobState.REDELIVERY, jobs.get(jobId).orElseThrow().getState());
+        assertThat(received).isEmpty();
+
+        jobs.delivered(jobId, "b", "late");
+        assertEquals(1, received.size());
+        assertEquals(JobState.COMPLETED, received.get(0).getState());
+        assertEquals("done", received.get(0).getCallbackResponse());
+        assertThat(received.get(0).getDeliveries()).extracting(DeliveryOutcome::getState)
+                .containsExactly(DeliveryState.DELIVERED, DeliveryState.DELIVERED);
+    }
+}
@@ -0,0 +1,153 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelineExecutorTest {
+    private final SpringWebProperties.Pipeline props = new SpringWebProperties().getPipeline();
+    private PipelineExecutor executor;
+
+    @AfterEach
+    void disposeExecutor() {
+        if (executor != null) {
+            executor.dispose();
+        }
+    }
+
+    // Queued pipelines start by priority, then earliest deadline, then arrival
+    @Test
+    void queuedPipelinesRunInPriorityThenDeadlineOrder() {
+        props.setMaxInFlight(1);
+        executor = new PipelineExecutor(props);
+        final Sinks.Empty<Void> blocker = Sinks.empty();
+        final List<String> started = new CopyOnWriteArrayList<>();
+        final long now = System.currentTimeMillis();
+        assertTrue(executor.submit(blocker.asMono()));
+
+        executor.submit(record(started, "low"), 0, null);
+        executor.submit(record(started, "late"), 5, now + 60_000);
+        executor.submit(record(started, "urgent"), 9, null);
+        executor.submit(record(started, "soon"), 5, now + 1_000);
+        executor.submit(record(started, "low-second"), 0, null);
+        assertEquals(5, executor.queued());
+
+        blocker.tryEmitEmpty();
+
+        assertEquals(List.of("urgent", "soon", "late", "low", "low-second"), started);
+        assertEquals(0, executor.inFlight());
+    }
+
+    // Integer.MIN_VALUE cannot be negated, so it must still sort last rather than first
+    @Test
+    void extremePrioritiesKeepTheirOrder() {
+        props.setMaxInFlight(1);
+        executor = new PipelineExecutor(props);
+        final Sinks.Empty<Void> blocker = Sinks.empty();
+        final List<String> started = new CopyOnWriteArrayList<>();
+        assertTrue(executor.submit(blocker.asMono()));
+
+        executor.submit(record(started, "min"), Integer.MIN_VALUE, null);
+        executor.submit(record(started, "zero"), 0, null);
+        executor.submit(record(started, "max"), Integer.MAX_VALUE, null);
+
+        blocker.tryEmitEmpty();
+
+        assertEquals(List.of("max", "zero", "min"), started);
+    }
+
+    @Test
+    void submitFailsOnceQueueIsFull() {
+        props.setMaxInFlight(1);
+        props.setQueueCapacity(1);
+        executor = new PipelineExecutor(props);
+
+        assertTrue(executor.submit(Mono.never()));
+        assertTrue(executor.submit(Mono.never(), 1, null));
+        assertFalse(executor.submit(Mono.never(), 9, null));
+    }
+
+    // A stage at its limit queues a few calls and refuses the rest, without touching the other stages
+    @Test
+    void slowStageOnlyFillsItsOwnBulkhead() {
+        props.setMaxInFlight(3);
+        props.setWorkerConcurrency(2);
+        props.setWorkerQueue(1);
+        executor = new PipelineExecutor(props);
+        final List<Sinks.Empty<Void>> slow = List.of(Sinks.empty(), Sinks.empty(), Sinks.empty());
+        final List<String> outcomes = new CopyOnWriteArrayList<>();
+
+        for (Sinks.Empty<Void> call : slow) {
+            executor.worker(call.asMono()).subscribe(v -> { }, e -> outcomes.add("refused"), () -> outcomes.add("done"));
+        }
+        executor.worker(Mono.never()).subscribe(v -> { }, e -> outcomes.add("refused"));
+        assertEquals(List.of("refused"), outcomes);
+        assertEquals("archived", executor.archive(Mono.just("archived")).block());
+
+        // The first call finishing gives the queued third one its turn
+        slow.get(2).tryEmitEmpty();
+        assertEquals(List.of("refused"), outcomes);
+        slow.get(0).tryEmitEmpty();
+        awaitSize(outcomes, 3);
+        assertEquals(List.of("refused", "done", "done"), outcomes);
+        slow.get(1).tryEmitEmpty();
+        awaitSize(outcomes, 4);
+    }
+
+    // A stage that could refuse a running pipeline is a configuration error
+    @Test
+    void stageSmallerThanThePipelineIsRefused() {
+        props.setWorkerConcurrency(2);
+        props.setWorkerQueue(1);
+
+        assertThatThrownBy(() -> new PipelineExecutor(props))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("worker");
+    }
+
+    // A queued call that is cancelled gives up its place, and a turn it was given goes back
+    @Test
+    void cancelledCallsReleaseTheirTurn() {
+        final StageBulkhead bulkhead = new StageBulkhead("worker", 1, 1);
+        final Sinks.Empty<Void> first = Sinks.empty();
+        bulkhead.run(first.asMono()).subscribe();
+        final var waiting = bulkhead.run(Mono.never()).subscribe();
+        assertEquals(1, bulkhead.queued());
+
+        waiting.dispose();
+        assertEquals(0, bulkhead.queued());
+        first.tryEmitEmpty();
+        assertEquals(0, bulkhead.inFlight());
+        assertEquals("ok", bulkhead.run(Mono.just("ok")).block());
+        assertEquals(0, bulkhead.inFlight());
+    }
+
+    private static void awaitSize(List<String> list, int size) {
+        for (int i = 0; i < 100 && list.size() < size; i++) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        assertEquals(size, list.size());
+    }
+
+    private static Mono<String> record(List<String> started, String name) {
+        return Mono.fromCallable(() -> {
+            started.add(name);
+            return name;
+        });
+    }
+}
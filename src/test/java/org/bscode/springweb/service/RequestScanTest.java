@@ -0,0 +1,43 @@
+package org.bscode.springweb.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RequestScanTest {
+    @Test
+    void steeringFieldsAreReadAndOthersSkipped() {
+        final var body = buffer("{\"extra\":{\"callback\":\"nested\"},\"deadline\":42,\"idempotent\":true,"
+                + "\"callback\":null,\"priority\":3}");
+
+        final var scan = RequestScan.of(body);
+
+        assertEquals(new RequestScan(null, 42L, true), scan);
+        assertEquals(0, body.readPosition());
+    }
+
+    @Test
+    void callbackIsReported() {
+        assertEquals("http://cb/x", RequestScan.of(buffer("{\"callback\":\"http://cb/x\"}")).getCallback());
+    }
+
+    // Anything the scan cannot vouch for is left to the regular decoding
+    @Test
+    void unexpectedInputIsNotScanned() {
+        assertNull(RequestScan.of(buffer("[]")));
+        assertNull(RequestScan.of(buffer("{\"deadline\":\"soon\"}")));
+        assertNull(RequestScan.of(buffer("{\"callback\":{}}")));
+        assertNull(RequestScan.of(buffer("{\"callback\":\"x\"")));
+        assertNull(RequestScan.of(buffer("{\"callbacks\":[\"http://cb/x\"]}")));
+        assertNull(RequestScan.of(buffer("{}")).getCallback());
+    }
+
+    private static DataBuffer buffer(String json) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -2,18 +2,37 @@ package org.bscode.springweb.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
 import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.DeliveryState;
+import org.bscode.springweb.model.JobState;
 import org.bscode.springweb.model.Request;
 import org.bscode.springweb.model.RequestResult;
+import org.bscode.springweb.model.SlowRequest;
+import org.bscode.springweb.queue.InMemoryJobTransport;
 import org.junit.jupiter.api.BeforeEach;
 import okhttp3.mockwebserver.MockWebServer;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.AssertionsForInterfaceTypes.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -93,6 +112,40 @@ class RequestServiceTest {
         assertNotNull(result);
         assertEquals("ERROR", result.getStatus());
     }
+
+    // Pass-through forwards the caller's bytes and returns the worker's bytes untouched
+    @Test
+    void relayedRequestKeepsBothBodiesAsIs() throws InterruptedException {
+        final var body = "{\"callback\":null, \"idempotent\":true, \"extra\":[1,2]}";
+        final var answer = "{\"status\":\"OK\",  \"worker\":\"w1\"}";
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(answer)
+        );
+        final var buffer = DefaultDataBufferFactory.sharedInstance.wrap(body.getBytes(StandardCharsets.UTF_8));
+
+        final var result = service.relayWork(buffer, RequestScan.of(buffer), "acme")
+                .map(relayed -> relayed.toString(StandardCharsets.UTF_8))
+                .block();
+
+        RecordedRequest webRequest = mockWebServer.takeRequest();
+        assertThat(webRequest.getPath()).isEqualTo("/worker");
+        assertEquals(body, webRequest.getBody().readUtf8());
+        assertEquals(answer, result);
+    }
+
+    @Test
+    void relayedRequestMaps4xxToError() {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.FORBIDDEN.value()));
+        final var buffer = DefaultDataBufferFactory.sharedInstance.wrap("{}".getBytes(StandardCharsets.UTF_8));
+
+        final var result = service.relayWork(buffer, RequestScan.of(buffer), "acme")
+                .map(relayed -> relayed.toString(StandardCharsets.UTF_8))
+                .block();
+
+        assertEquals("{\"status\":\"ERROR\"}", result);
+    }
     @Test
     void callbackMakesCorrectRequest() throws InterruptedException, JsonProcessingException {
         final var initialExpected = new RequestResult("In process");
@@ -117,7 +170,8 @@ class RequestServiceTest {
         );
 
         final var initialRet = service.scheduleWork(workerRequest).block();
-        assertEquals(initialExpected, initialRet);
+        assertEquals(initialExpected.getStatus(), initialRet.getStatus());
+        assertNotNull(initialRet.getJobId());
 
         RecordedRequest recordedWorkerRequest = mockWebServer.takeRequest();
         assertThat(recordedWorkerRequest.getMethod()).isEqualTo("POST");
@@ -127,12 +181,15 @@ class RequestServiceTest {
         RecordedRequest archiveResult = mockWebServer.takeRequest();
         assertThat(archiveResult.getMethod()).isEqualTo("POST");
         assertThat(archiveResult.getPath()).isEqualTo("/archive");
-        assertEquals(mapper.writeValueAsString(workerResultSent), archiveResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())
+                        .withIdempotencyKey(initialRet.getJobId())),
+                archiveResult.getBody().readUtf8());
 
         RecordedRequest callbackResult = mockWebServer.takeRequest();
         assertThat(callbackResult.getMethod()).isEqualTo("POST");
         assertThat(callbackResult.getPath()).isEqualTo("/callback");
-        assertEquals(mapper.writeValueAsString(workerResultSent), callbackResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())),
+                callbackResult.getBody().readUtf8());
     }
 
     // If the worker client returns a status code 500, so should we
@@ -160,7 +217,8 @@ class RequestServiceTest {
         );
 
         final var initialRet = service.scheduleWork(workerRequest).block();
-        assertEquals(initialExpected, initialRet);
+        assertEquals(initialExpected.getStatus(), initialRet.getStatus());
+        assertNotNull(initialRet.getJobId());
 
         RecordedRequest recordedWorkerRequest = mockWebServer.takeRequest();
         assertThat(recordedWorkerRequest.getMethod()).isEqualTo("POST");
@@ -170,12 +228,15 @@ class RequestServiceTest {
         RecordedRequest archiveResult = mockWebServer.takeRequest();
         assertThat(archiveResult.getMethod()).isEqualTo("POST");
         assertThat(archiveResult.getPath()).isEqualTo("/archive");
-        assertEquals(mapper.writeValueAsString(workerResultSent), archiveResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())
+                        .withIdempotencyKey(initialRet.getJobId())),
+                archiveResult.getBody().readUtf8());
 
         RecordedRequest callbackResult = mockWebServer.takeRequest();
         assertThat(callbackResult.getMethod()).isEqualTo("POST");
         assertThat(callbackResult.getPath()).isEqualTo("/callback");
-        assertEquals(mapper.writeValueAsString(workerResultSent), callbackResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())),
+                callbackResult.getBody().readUtf8());
     }
 
     // If the worker client returns a status code 4xx, we return "error"
@@ -203,7 +264,8 @@ class RequestServiceTest {
         );
 
         final var initialRet = service.scheduleWork(workerRequest).block();
-        assertEquals(initialExpected, initialRet);
+        assertEquals(initialExpected.getStatus(), initialRet.getStatus());
+        assertNotNull(initialRet.getJobId());
 
         RecordedRequest recordedWorkerRequest = mockWebServer.takeRequest();
         assertThat(recordedWorkerRequest.getMethod()).isEqualTo("POST");
@@ -213,12 +275,15 @@ class RequestServiceTest {
         RecordedRequest archiveResult = mockWebServer.takeRequest();
         assertThat(archiveResult.getMethod()).isEqualTo("POST");
         assertThat(archiveResult.getPath()).isEqualTo("/archive");
-        assertEquals(mapper.writeValueAsString(workerResultSent), archiveResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())
+                        .withIdempotencyKey(initialRet.getJobId())),
+                archiveResult.getBody().readUtf8());
 
         RecordedRequest callbackResult = mockWebServer.takeRequest();
         assertThat(callbackResult.getMethod()).isEqualTo("POST");
         assertThat(callbackResult.getPath()).isEqualTo("/callback");
-        assertEquals(mapper.writeValueAsString(workerResultSent), callbackResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())),
+                callbackResult.getBody().readUtf8());
     }
 
     @Test
@@ -245,7 +310,8 @@ class RequestServiceTest {
         );
 
         final var initialRet = service.scheduleWork(workerRequest).block();
-        assertEquals(initialExpected, initialRet);
+        assertEquals(initialExpected.getStatus(), initialRet.getStatus());
+        assertNotNull(initialRet.getJobId());
 
         RecordedRequest recordedWorkerRequest = mockWebServer.takeRequest();
         assertThat(recordedWorkerRequest.getMethod()).isEqualTo("POST");
@@ -255,12 +321,15 @@ class RequestServiceTest {
         RecordedRequest archiveResult = mockWebServer.takeRequest();
         assertThat(archiveResult.getMethod()).isEqualTo("POST");
         assertThat(archiveResult.getPath()).isEqualTo("/archive");
-        assertEquals(mapper.writeValueAsString(workerResultSent), archiveResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())
+                        .withIdempotencyKey(initialRet.getJobId())),
+                archiveResult.getBody().readUtf8());
 
         RecordedRequest callbackResult = mockWebServer.takeRequest();
         assertThat(callbackResult.getMethod()).isEqualTo("POST");
         assertThat(callbackResult.getPath()).isEqualTo("/callback");
-        assertEquals(mapper.writeValueAsString(workerResultSent), callbackResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())),
+                callbackResult.getBody().readUtf8());
     }
 
     @Test
@@ -287,7 +356,8 @@ class RequestServiceTest {
         );
 
         final var initialRet = service.scheduleWork(workerRequest).block();
-        assertEquals(initialExpected, initialRet);
+        assertEquals(initialExpected.getStatus(), initialRet.getStatus());
+        assertNotNull(initialRet.getJobId());
 
         RecordedRequest recordedWorkerRequest = mockWebServer.takeRequest();
         assertThat(recordedWorkerRequest.getMethod()).isEqualTo("POST");
@@ -297,11 +367,510 @@ class RequestServiceTest {
         RecordedRequest archiveResult = mockWebServer.takeRequest();
         assertThat(archiveResult.getMethod()).isEqualTo("POST");
         assertThat(archiveResult.getPath()).isEqualTo("/archive");
-        assertEquals(mapper.writeValueAsString(workerResultSent), archiveResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())
+                        .withIdempotencyKey(initialRet.getJobId())),
+                archiveResult.getBody().readUtf8());
 
         RecordedRequest callbackResult = mockWebServer.takeRequest();
         assertThat(callbackResult.getMethod()).isEqualTo("POST");
         assertThat(callbackResult.getPath()).isEqualTo("/callback");
-        assertEquals(mapper.writeValueAsString(workerResultSent), callbackResult.getBody().readUtf8());
+        assertEquals(mapper.writeValueAsString(workerResultSent.withJobId(initialRet.getJobId())),
+                callbackResult.getBody().readUtf8());
+    }
+
+    // With every pipeline slot and queue entry taken, callback requests are turned away
+    @Test
+    void callbackRejectedWhenPipelineFull() throws JsonProcessingException {
+        properties.getPipeline().setMaxInFlight(1);
+        properties.getPipeline().setQueueCapacity(0);
+        service = new RequestService(properties);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+                        .setHeadersDelay(1, TimeUnit.SECONDS)
+        );
+
+        final var initialRet = service.scheduleWork(workerRequest).block();
+        assertEquals("In process", initialRet.getStatus());
+
+        assertThatThrownBy(() -> service.scheduleWork(workerRequest).block())
+                .isInstanceOf(PipelineBusyException.class);
+    }
+
+    // A worker call the guard refuses never reached the worker, so the job fails instead of
+    // archiving and calling back with an ERROR result it did not produce
+    @Test
+    void refusedWorkerCallFailsTheJob() throws InterruptedException, JsonProcessingException {
+        properties.getResilience().setEnabled(true);
+        properties.getResilience().setInitialLimit(1);
+        final var jobs = new JobStore(properties);
+        service.shutdown();
+        service = new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+                        .setHeadersDelay(500, TimeUnit.MILLISECONDS)
+        );
+
+        final var first = service.scheduleWork(workerRequest).block().getJobId();
+        assertThat(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getPath()).isEqualTo("/worker");
+        final var failed = jobs.completions().next().toFuture();
+        final var second = service.scheduleWork(workerRequest).block().getJobId();
+
+        final var status = failed.join();
+        assertEquals(second, status.getJobId());
+        assertEquals(JobState.FAILED, status.getState());
+        assertThat(status.getError()).contains(DownstreamRejectedException.class.getSimpleName());
+        assertThat(status.getResult()).isNull();
+        assertThat(mockWebServer.takeRequest(200, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(jobs.get(first).orElseThrow().getState()).isNotEqualTo(JobState.FAILED);
+    }
+
+    // Identical work shares one worker call only between callers with the same deadline
+    @Test
+    void sharedWorkerCallsKeepEachDeadline() throws InterruptedException, JsonProcessingException {
+        properties.getSingleFlight().setEnabled(true);
+        service.shutdown();
+        service = new RequestService(properties);
+        for (int i = 0; i < 2; i++) {
+            mockWebServer.enqueue(
+                    new MockResponse().setResponseCode(200)
+                            .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+                            .setHeadersDelay(300, TimeUnit.MILLISECONDS)
+            );
+        }
+        final long deadline = System.currentTimeMillis() + 5_000;
+
+        final var results = Flux.merge(
+                        service.scheduleWork(new Request(null, null, false, deadline, 0)),
+                        service.scheduleWork(new Request(null, null, false, deadline, 9)),
+                        service.scheduleWork(new Request(null, null, false, deadline + 10_000, 0)))
+                .collectList().block();
+
+        assertThat(results).containsOnly(new RequestResult("OK")).hasSize(3);
+        assertEquals(2, mockWebServer.getRequestCount());
+        final var deadlines = List.of(mockWebServer.takeRequest().getHeader(Deadlines.HEADER),
+                mockWebServer.takeRequest().getHeader(Deadlines.HEADER));
+        assertThat(deadlines).containsExactlyInAnyOrder(Long.toString(deadline), Long.toString(deadline + 10_000));
+    }
+
+    // A tenant past its burst is throttled without reaching the worker, and is counted per tenant
+    @Test
+    void tenantOverItsRateIsThrottled() throws JsonProcessingException {
+        properties.getTenants().setRate(1);
+        properties.getTenants().setBurst(1);
+        final var registry = new SimpleMeterRegistry();
+        service = new RequestService(properties, new HttpClientFactory(properties), null, registry,
+                new JobStore(properties));
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+        );
+
+        assertEquals(new RequestResult("OK"), service.scheduleWork(new Request(null), "acme").block());
+        assertThatThrownBy(() -> service.scheduleWork(new Request(null), "acme").block())
+                .isInstanceOf(TenantThrottledException.class);
+        final var bulk = service.scheduleBulk(Flux.just("{}"), "acme").collectList().block();
+
+        assertEquals(List.of(new RequestResult("THROTTLED")), bulk);
+        assertEquals(1, mockWebServer.getRequestCount());
+        assertEquals(2.0, registry.get("springweb.tenant.rejected").tag("tenant", "acme").tag("reason", "rate")
+                .counter().count());
+    }
+
+    // Callback-mode work goes through the job transport and is acked once the callback succeeds
+    @Test
+    void callbackPublishedToTransportIsAckedAfterCallback() throws InterruptedException, JsonProcessingException {
+        final var transport = new InMemoryJobTransport(1, 1);
+        service = new RequestService(properties, transport);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        final var workerResultSent = new RequestResult("OK");
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.enqueue(
+                    new MockResponse().setResponseCode(200)
+                            .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .setBody(mapper.writeValueAsString(workerResultSent))
+            );
+        }
+
+        final var initialRet = service.scheduleWork(workerRequest).block();
+        assertEquals("In process", initialRet.getStatus());
+
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/worker");
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/archive");
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/callback");
+        awaitSettled(transport);
+        assertEquals(1, transport.acked());
+        assertEquals(0, transport.rejected());
+    }
+
+    // A failing callback fails its job, but the pipeline is acked rather than run again,
+    // which would send the result a second time to targets that already have it
+    @Test
+    void callbackFailureFailsTheJobWithoutARerun() throws Exception {
+        final var transport = new InMemoryJobTransport(1, 1);
+        service = new RequestService(properties, transport);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback",
+                List.of(properties.getArchiveBaseUrl() + "second"), null, false, null, 0);
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse()
+                        .setResponseCode(request.getPath().equals("/second") ? 500 : 200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{\"status\":\"OK\"}");
+            }
+        });
+
+        final var failed = service.jobs.completions().next().toFuture();
+        service.scheduleWork(workerRequest).block();
+
+        assertEquals(JobState.FAILED, failed.get(5, TimeUnit.SECONDS).getState());
+        awaitSettled(transport);
+        assertEquals(1, transport.acked());
+        assertEquals(0, transport.rejected());
+        assertEquals(4, mockWebServer.getRequestCount());
+    }
+
+    // A pipeline that fails before its callbacks is redelivered once and then rejected, never acked
+    @Test
+    void pipelineFailureIsRedeliveredThenRejected() throws InterruptedException, JsonProcessingException {
+        final var transport = new InMemoryJobTransport(1, 1);
+        service = new RequestService(properties, transport);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        final var workerResultSent = new RequestResult("OK");
+        for (int attempt = 0; attempt < 2; attempt++) {
+            // The archive call is retried twice before the pipeline fails
+            for (int code : new int[]{200, 500, 500, 500}) {
+                mockWebServer.enqueue(
+                        new MockResponse().setResponseCode(code)
+                                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .setBody(mapper.writeValueAsString(workerResultSent))
+                );
+            }
+        }
+
+        service.scheduleWork(workerRequest).block();
+
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(mockWebServer.takeRequest(10, TimeUnit.SECONDS));
+        }
+        awaitSettled(transport);
+        assertEquals(0, transport.acked());
+        assertEquals(1, transport.rejected());
+    }
+
+    // Worker calls are timed per stage and 4xx answers are counted by status class
+    @Test
+    void workerCallsRecordStageMetrics() throws JsonProcessingException {
+        final var registry = new SimpleMeterRegistry();
+        service = new RequestService(properties, new HttpClientFactory(properties), null, registry,
+                new JobStore(properties));
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+        );
+        mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.FORBIDDEN.value()));
+
+        service.scheduleWork(new Request(null)).block();
+        service.scheduleWork(new Request(null)).block();
+
+        assertEquals(2, registry.get("springweb.stage.duration").tag("stage", "worker").timer().count());
+        assertEquals(1.0, registry.get("springweb.stage.errors").tag("stage", "worker").tag("status", "4xx").counter().count());
+        assertEquals(0.0, registry.get("springweb.stage.inflight").tag("stage", "worker").gauge().value());
+    }
+
+    // Error statuses are tagged by their own series, so a redirect is not counted as a 5xx
+    @Test
+    void stageErrorsAreTaggedByStatusSeries() {
+        final var registry = new SimpleMeterRegistry();
+        final var metrics = new PipelineMetrics(registry);
+
+        StepVerifier.create(metrics.time(PipelineMetrics.Stage.ARCHIVE,
+                        Mono.error(WebClientResponseException.create(302, "Found", null, null, null))))
+                .expectError()
+                .verify();
+        StepVerifier.create(metrics.time(PipelineMetrics.Stage.ARCHIVE,
+                        Mono.error(WebClientResponseException.create(503, "Service Unavailable", null, null, null))))
+                .expectError()
+                .verify();
+
+        assertEquals(1.0, registry.get("springweb.stage.errors").tag("stage", "archive").tag("status", "3xx").counter().count());
+        assertEquals(1.0, registry.get("springweb.stage.errors").tag("stage", "archive").tag("status", "5xx").counter().count());
+        assertEquals(0.0, registry.get("springweb.stage.errors").tag("stage", "archive").tag("status", "io").counter().count());
+    }
+
+    // The job id returned for callback work tracks the pipeline until the callback answers
+    @Test
+    void callbackJobIsTrackedToCompletion() throws InterruptedException, JsonProcessingException {
+        final var jobs = new JobStore(properties);
+        service = new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+                        .setHeadersDelay(300, TimeUnit.MILLISECONDS)
+        );
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("archived"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("done"));
+
+        final var completed = jobs.completions().next().toFuture();
+        final var jobId = service.scheduleWork(workerRequest).block().getJobId();
+        assertThat(jobs.get(jobId)).isPresent();
+
+        final var status = completed.join();
+        assertEquals(jobId, status.getJobId());
+        assertEquals(JobState.COMPLETED, status.getState());
+        assertEquals(new RequestResult("OK", jobId), status.getResult());
+        assertEquals("done", status.getCallbackResponse());
+        assertEquals(status, jobs.get(jobId).orElseThrow());
+    }
+
+    // Tracing is opt-in: by default no trace is built, sent or kept
+    @Test
+    void requestsAreNotTracedByDefault() throws InterruptedException, JsonProcessingException {
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+        );
+
+        assertEquals(new RequestResult("OK"), service.scheduleWork(new Request(null)).block());
+
+        assertThat(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getHeader(Traces.HEADER)).isNull();
+        assertThat(service.slowRequests()).isEmpty();
+    }
+
+    // A callback job is traced under its job id on every internal hop, and the slow-request log has its stages
+    @Test
+    void callbackIsTracedUnderItsJobId() throws InterruptedException, JsonProcessingException {
+        properties.getDiagnostics().setTracing(true);
+        final var jobs = new JobStore(properties);
+        service = new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+        );
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("archived"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("done"));
+
+        final var completed = jobs.completions().next().toFuture();
+        final var jobId = service.scheduleWork(workerRequest).block().getJobId();
+        completed.join();
+
+        for (String path : List.of("/worker", "/archive")) {
+            RecordedRequest recorded = mockWebServer.takeRequest(5, TimeUnit.SECONDS);
+            assertThat(recorded.getPath()).isEqualTo(path);
+            assertEquals(jobId, recorded.getHeader(Traces.HEADER));
+        }
+        // The callback target is outside the pipeline and never sees the trace id
+        RecordedRequest callback = mockWebServer.takeRequest(5, TimeUnit.SECONDS);
+        assertThat(callback.getPath()).isEqualTo("/callback");
+        assertThat(callback.getHeader(Traces.HEADER)).isNull();
+        // The job is marked done from inside the pipeline, just before the trace ends
+        var slow = service.slowRequests();
+        for (int i = 0; i < 50 && slow.isEmpty(); i++) {
+            Thread.sleep(100);
+            slow = service.slowRequests();
+        }
+        assertThat(slow).hasSize(1);
+        assertEquals(jobId, slow.get(0).getTraceId());
+        assertEquals("callback", slow.get(0).getKind());
+        assertEquals("ok", slow.get(0).getOutcome());
+        assertThat(slow.get(0).getSpans()).extracting(SlowRequest.Span::getName)
+                .containsExactly("queued", "worker", "archive", "callback");
+        assertEquals(Map.of("worker", 1, "archive", 1, "callback", 1), slow.get(0).getAttempts());
+    }
+
+    // Every callback target gets the result in parallel and has its own outcome on the job
+    @Test
+    void fanOutRecordsAnOutcomePerTarget() throws InterruptedException, JsonProcessingException {
+        final var jobs = new JobStore(properties);
+        service = new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+        final var worker = mapper.writeValueAsString(new RequestResult("OK"));
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                switch (request.getPath()) {
+                    case "/worker":
+                    case "/archive":
+                        return new MockResponse().setResponseCode(200)
+                                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .setBody(worker);
+                    case "/a":
+                        return new MockResponse().setResponseCode(200).setBody("got-a");
+                    default:
+                        return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        final var base = properties.getArchiveBaseUrl();
+        final var workerRequest = new Request(base + "a", List.of(base + "b", base + "a"), null, false, null, 0);
+
+        final var finished = jobs.completions().next().toFuture();
+        final var jobId = service.scheduleWork(workerRequest).block().getJobId();
+
+        final var status = finished.join();
+        assertEquals(JobState.FAILED, status.getState());
+        assertEquals("got-a", status.getCallbackResponse());
+        assertEquals(2, status.getDeliveries().size());
+        assertEquals(base + "a", status.getDeliveries().get(0).getTarget());
+        assertEquals(DeliveryState.DELIVERED, status.getDeliveries().get(0).getState());
+        assertEquals(base + "b", status.getDeliveries().get(1).getTarget());
+        assertEquals(DeliveryState.FAILED, status.getDeliveries().get(1).getState());
+        assertEquals(4, mockWebServer.getRequestCount());
+        assertEquals(jobId, status.getJobId());
+    }
+
+    // Malformed targets are refused up front; one that still reaches the pipeline, e.g. over
+    // the transport, fails only its own delivery
+    @Test
+    void malformedTargetOnlyFailsItsOwnDelivery() throws JsonProcessingException {
+        final var jobs = new JobStore(properties);
+        service = new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+        final var worker = mapper.writeValueAsString(new RequestResult("OK"));
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return "/a".equals(request.getPath())
+                        ? new MockResponse().setResponseCode(200).setBody("got-a")
+                        : new MockResponse().setResponseCode(200)
+                                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .setBody(worker);
+            }
+        });
+        final var base = properties.getArchiveBaseUrl();
+        final var malformed = new Request(base + "a", List.of("http://bad host/cb"), null, false, null, 0);
+
+        assertThatThrownBy(() -> service.scheduleWork(malformed).block())
+                .isInstanceOf(InvalidCallbacksException.class);
+        assertThatThrownBy(() -> service.scheduleWork(new Request("ftp://h/cb")).block())
+                .isInstanceOf(InvalidCallbacksException.class);
+        assertEquals(0, mockWebServer.getRequestCount());
+
+        final var finished = jobs.completions().next().toFuture();
+        final var jobId = jobs.create();
+        service.runPipeline(malformed.withJobId(jobId)).block(Duration.ofSeconds(5));
+
+        final var status = finished.join();
+        assertEquals(JobState.FAILED, status.getState());
+        assertEquals(DeliveryState.DELIVERED, status.getDeliveries().get(0).getState());
+        assertEquals(DeliveryState.FAILED, status.getDeliveries().get(1).getState());
+    }
+
+    // A failed callback still leaves the worker result retrievable by job id
+    @Test
+    void failedCallbackKeepsWorkerResult() throws JsonProcessingException {
+        final var jobs = new JobStore(properties);
+        service = new RequestService(properties, new HttpClientFactory(properties), null, new SimpleMeterRegistry(), jobs);
+        final var workerRequest = new Request(properties.getArchiveBaseUrl() + "callback");
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+                        .setHeadersDelay(300, TimeUnit.MILLISECONDS)
+        );
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("archived"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+
+        final var failed = jobs.completions().next().toFuture();
+        final var jobId = service.scheduleWork(workerRequest).block().getJobId();
+
+        final var status = failed.join();
+        assertEquals(JobState.FAILED, status.getState());
+        assertEquals(new RequestResult("OK", jobId), status.getResult());
+        assertNotNull(status.getError());
+    }
+
+    // Bulk results come back one per line in input order, with bad lines answered in place
+    @Test
+    void bulkReturnsOneResultPerLineInOrder() throws InterruptedException, JsonProcessingException {
+        properties.getBulk().setMaxConcurrency(1);
+        service = new RequestService(properties);
+        for (int i = 0; i < 2; i++) {
+            mockWebServer.enqueue(
+                    new MockResponse().setResponseCode(200)
+                            .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+            );
+        }
+        final var line = mapper.writeValueAsString(new Request(null));
+
+        final var results = service.scheduleBulk(Flux.just(line, "", "{not json", line))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertEquals(List.of(new RequestResult("OK"), new RequestResult("ERROR"), new RequestResult("OK")), results);
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/worker");
+        assertThat(mockWebServer.takeRequest().getPath()).isEqualTo("/worker");
+        assertEquals(2, mockWebServer.getRequestCount());
+    }
+
+    // With the Smile wire format the worker hop is sent and decoded as Smile
+    @Test
+    void smileWireFormatOnWorkerHop() throws InterruptedException, IOException {
+        properties.getWire().setFormat(SpringWebProperties.WireFormat.SMILE);
+        service = new RequestService(properties);
+        final var smile = new ObjectMapper(new SmileFactory());
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, "application/x-jackson-smile")
+                        .setBody(new Buffer().write(smile.writeValueAsBytes(new RequestResult("OK"))))
+        );
+
+        final var result = service.scheduleWork(new Request(null)).block();
+
+        assertEquals(new RequestResult("OK"), result);
+        RecordedRequest workerRequest = mockWebServer.takeRequest();
+        assertThat(workerRequest.getHeader(HttpHeaders.CONTENT_TYPE)).isEqualTo("application/x-jackson-smile");
+        assertEquals(new Request(null), smile.readValue(workerRequest.getBody().readByteArray(), Request.class));
+    }
+
+    // The deadline goes to the worker as a header and cuts the call off when it passes
+    @Test
+    void deadlineIsSentToWorkerAndEnforced() throws InterruptedException, JsonProcessingException {
+        final var deadline = System.currentTimeMillis() + 300;
+        mockWebServer.enqueue(
+                new MockResponse().setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody(mapper.writeValueAsString(new RequestResult("OK")))
+                        .setHeadersDelay(2, TimeUnit.SECONDS)
+        );
+
+        assertThatThrownBy(() -> service.scheduleWork(new Request(null, null, false, deadline, 0)).block())
+                .isInstanceOf(DeadlineExceededException.class);
+        assertThat(System.currentTimeMillis()).isLessThan(deadline + 1000);
+
+        RecordedRequest workerRequest = mockWebServer.takeRequest();
+        assertEquals(Long.toString(deadline), workerRequest.getHeader(Deadlines.HEADER));
+    }
+
+    // Expired work is dropped before any downstream call
+    @Test
+    void expiredRequestMakesNoDownstreamCall() {
+        final var expired = new Request(properties.getArchiveBaseUrl() + "callback", null, false,
+                System.currentTimeMillis() - 1, 0);
+
+        assertThatThrownBy(() -> service.scheduleWork(expired).block())
+                .isInstanceOf(DeadlineExceededException.class);
+        assertThatThrownBy(() -> service.scheduleWork(new Request(null, null, false, System.currentTimeMillis() - 1, 0)).block())
+                .isInstanceOf(DeadlineExceededException.class);
+        assertEquals(0, mockWebServer.getRequestCount());
+    }
+
+    private void awaitSettled(InMemoryJobTransport transport) throws InterruptedException {
+        for (int i = 0; i < 50 && transport.pending() > 0; i++) {
+            Thread.sleep(100);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.model.Request;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class SingleFlightTest {
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>(16);
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    private final AtomicInteger cancellations = new AtomicInteger();
+    private final Sinks.One<String> upstream = Sinks.one();
+
+    private Mono<String> call() {
+        return upstream.asMono()
+                .doOnSubscribe(s -> subscriptions.incrementAndGet())
+                .doOnCancel(cancellations::incrementAndGet);
+    }
+
+    // Requests for the same work share a key whatever their priority or callbacks, but not across deadlines
+    @Test
+    void keysIgnoreWhereTheResultIsWanted() {
+        final long deadline = System.currentTimeMillis() + 1000;
+        final var plain = new Request(null, null, false, deadline, 0);
+        final var routed = new Request("http://a.example/cb", List.of("http://b.example/cb"), "job-1",
+                false, deadline, 7);
+
+        assertEquals(RequestKeys.hash(plain), RequestKeys.hash(routed));
+        assertNotEquals(RequestKeys.hash(plain), RequestKeys.hash(new Request(null, null, false, deadline + 1, 0)));
+        assertNotEquals(RequestKeys.hash(plain), RequestKeys.hash(new Request(null, null, true, deadline, 0)));
+    }
+
+    @Test
+    void concurrentCallsShareOneSubscription() {
+        final var first = new AtomicReference<String>();
+        final var second = new AtomicReference<String>();
+        singleFlight.execute("key", this::call).subscribe(first::set);
+        singleFlight.execute("key", this::call).subscribe(second::set);
+
+        upstream.tryEmitValue("OK");
+
+        assertEquals(1, subscriptions.get());
+        assertEquals("OK", first.get());
+        assertEquals("OK", second.get());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    void errorsReachEverySubscriber() {
+        final var errors = new AtomicInteger();
+        singleFlight.execute("key", this::call).subscribe(v -> { }, e -> errors.incrementAndGet());
+        singleFlight.execute("key", this::call).subscribe(v -> { }, e -> errors.incrementAndGet());
+
+        upstream.tryEmitError(new IllegalStateException("boom"));
+
+        assertEquals(2, errors.get());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    void sharedCallCancelledOnlyWhenEverySubscriberCancels() {
+        final var result = new AtomicReference<String>();
+        Disposable first = singleFlight.execute("key", this::call).subscribe();
+        Disposable second = singleFlight.execute("key", this::call).subscribe(result::set);
+
+        first.dispose();
+        assertEquals(0, cancellations.get());
+        assertFalse(second.isDisposed());
+
+        second.dispose();
+        assertEquals(1, cancellations.get());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    void differentKeysDoNotShare() {
+        singleFlight.execute("a", this::call).subscribe();
+        singleFlight.execute("b", this::call).subscribe();
+
+        assertEquals(2, subscriptions.get());
+        assertEquals(2, singleFlight.size());
+    }
+}
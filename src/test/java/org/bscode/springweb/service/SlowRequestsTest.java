@@ -0,0 +1,50 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.SlowRequest;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SlowRequestsTest {
+
+    @Test
+    void keepsTheSlowestSlowestFirst() {
+        SlowRequests slow = new SlowRequests(diagnostics(3, Duration.ofMinutes(5)));
+        for (int ms : new int[]{5, 40, 10, 30, 1, 20}) {
+            slow.offer(trace("r" + ms), TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+
+        assertThat(slow.snapshot()).extracting(SlowRequest::getTraceId).containsExactly("r40", "r30", "r20");
+    }
+
+    // Requests from the previous window still show until it is two windows old
+    @Test
+    void coversOneToTwoWindows() throws InterruptedException {
+        SlowRequests slow = new SlowRequests(diagnostics(2, Duration.ofMillis(500)));
+        slow.offer(trace("old"), TimeUnit.MILLISECONDS.toNanos(50));
+        Thread.sleep(600);
+        slow.offer(trace("new"), TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(slow.snapshot()).extracting(SlowRequest::getTraceId).containsExactly("old", "new");
+
+        Thread.sleep(600);
+        slow.offer(trace("newest"), TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(slow.snapshot()).extracting(SlowRequest::getTraceId).containsExactly("new", "newest");
+    }
+
+    private static Trace trace(String id) {
+        Trace trace = new Trace(id, "sync");
+        trace.finish("ok");
+        return trace;
+    }
+
+    private static SpringWebProperties.Diagnostics diagnostics(int slowRequests, Duration window) {
+        SpringWebProperties.Diagnostics diagnostics = new SpringWebProperties.Diagnostics();
+        diagnostics.setSlowRequests(slowRequests);
+        diagnostics.setSlowWindow(window);
+        return diagnostics;
+    }
+}
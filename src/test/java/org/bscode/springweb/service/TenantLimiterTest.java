@@ -0,0 +1,108 @@
+package org.bscode.springweb.service;
+
+import org.bscode.springweb.config.SpringWebProperties;
+import org.bscode.springweb.model.Request;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TenantLimiterTest {
+    private final SpringWebProperties.Tenants props = new SpringWebProperties().getTenants();
+
+    @Test
+    void burstIsAllowedThenTenantIsThrottled() {
+        props.setRate(1);
+        props.setBurst(3);
+        final var limiter = new TenantLimiter(props);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("a"));
+        }
+        assertThat(limiter.tryAcquire("a")).isPositive();
+        // Other tenants have their own bucket
+        assertEquals(0, limiter.tryAcquire("b"));
+    }
+
+    // A caller can only name its own tenant when the node is told to trust it
+    @Test
+    void tenantIsTheRemoteAddressUnlessCallersAreTrusted() {
+        final var req = new Request("http://callbacks.example/cb");
+
+        assertEquals("10.0.0.7", Tenants.resolve("gold", req, "10.0.0.7", false));
+        assertEquals(Tenants.ANONYMOUS, Tenants.resolve("gold", req, null, false));
+        assertEquals("gold", Tenants.resolve(" gold ", req, "10.0.0.7", true));
+        assertEquals("callbacks.example", Tenants.resolve(null, req, "10.0.0.7", true));
+        assertEquals("10.0.0.7", Tenants.resolve(null, new Request(null), "10.0.0.7", true));
+    }
+
+    @Test
+    void overridesReplaceTheDefaults() {
+        props.setRate(1);
+        props.setBurst(1);
+        final var gold = new SpringWebProperties.TenantLimit();
+        gold.setBurst(5);
+        gold.setWeight(3);
+        props.getOverrides().put("gold", gold);
+        final var limiter = new TenantLimiter(props);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire("gold"));
+        }
+        assertEquals(3, limiter.weight("gold"));
+        assertEquals(1, limiter.weight("other"));
+    }
+
+    // Past maxTenants, full buckets are swept and tenants beyond that share one bucket
+    @Test
+    void tenantStateIsBounded() throws InterruptedException {
+        props.setRate(1000);
+        props.setBurst(1);
+        props.setMaxTenants(10);
+        final var limiter = new TenantLimiter(props);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire("t" + i);
+        }
+        assertEquals(10, limiter.size());
+
+        Thread.sleep(150);
+        limiter.tryAcquire("late");
+        assertEquals(1, limiter.size());
+    }
+
+    // Concurrent callers never get more than the burst from a bucket that does not refill in time
+    @Test
+    void concurrentCallersShareTheBurst() throws InterruptedException {
+        props.setRate(0.001);
+        props.setBurst(100);
+        final var limiter = new TenantLimiter(props);
+        final var allowed = new AtomicInteger();
+        final var start = new CountDownLatch(1);
+        final var threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (limiter.tryAcquire("shared") == 0) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100, allowed.get());
+    }
+}